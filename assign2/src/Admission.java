@@ -0,0 +1,195 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.jfr.FlightRecorder;
+
+// Decides whether an accepted socket gets a handler at all. Connections are limited in total and
+// per source address, and while the server is overloaded new connections and AI requests are
+// turned away with a retry hint instead of making everyone slower. Sending that hint costs a TLS
+// handshake, so at most chat.shed.maxRejecting connections get one at a time; beyond that a
+// rejected connection is just closed.
+//
+// The server counts as overloaded when, over the last second, at least half of the chat lines
+// waited longer than chat.shed.maxLatencyMs between being queued and written, or the heap was
+// fuller than chat.shed.maxHeapFraction after the last collection. The median rather than the mean,
+// so a few slow readers with long queues cannot make the server turn everyone away. Both are sampled once a second, so the
+// accept loop and the chat path only read a volatile field.
+//
+// The counters are shown in /stats and recorded as the periodic chat.Admission JFR event.
+public class Admission {
+    private static final int MAX_CONNECTIONS = Integer.getInteger("chat.conn.max", 10000);
+    private static final int MAX_PER_ADDRESS = Integer.getInteger("chat.conn.maxPerAddress", 20);
+    // Time allowed for the TLS handshake and the login lines
+    public static final int LOGIN_TIMEOUT_MS = Integer.getInteger("chat.conn.loginTimeoutMs", 10000);
+    private static final long MAX_LATENCY_MICROS = Long.getLong("chat.shed.maxLatencyMs", 500) * 1000;
+    private static final double MAX_HEAP_FRACTION = Double.parseDouble(System.getProperty("chat.shed.maxHeapFraction", "0.9"));
+    public static final int RETRY_SECONDS = Integer.getInteger("chat.shed.retrySeconds", 10);
+    private static final int MAX_REJECTING = Integer.getInteger("chat.shed.maxRejecting", 64);
+
+    public enum Rejection {
+        TOO_MANY_CONNECTIONS("The server is full"),
+        TOO_MANY_FROM_ADDRESS("Too many connections from your address"),
+        OVERLOADED("The server is overloaded");
+
+        public final String message;
+
+        Rejection(String message) {
+            this.message = message;
+        }
+    }
+
+    private static final AtomicInteger open = new AtomicInteger();
+    private static final Semaphore rejecting = new Semaphore(MAX_REJECTING);
+    private static final Map<InetAddress, Integer> perAddress = new ConcurrentHashMap<>();
+
+    private static final LongAdder accepted = new LongAdder();
+    private static final LongAdder rejectedAtLimit = new LongAdder();
+    private static final LongAdder rejectedOverloaded = new LongAdder();
+    private static final LongAdder loginTimeouts = new LongAdder();
+    private static final LongAdder aiShed = new LongAdder();
+    private static final LongAdder closedUnanswered = new LongAdder();
+
+    // Why the server is overloaded, null while it is not
+    private static volatile String overload = null;
+    private static long[] lastHistogram = LaneMetrics.histogram(ClientConnection.Lane.CHAT);
+
+    static {
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "admission-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(Admission::sample, 1, 1, TimeUnit.SECONDS);
+        FlightRecorder.addPeriodicEvent(ChatEvents.Admission.class, Admission::record);
+    }
+
+    // Null if the connection may go ahead, in which case release() must be called once it closes
+    public static Rejection admit(InetAddress address) {
+        if (overload != null) {
+            rejectedOverloaded.increment();
+            return Rejection.OVERLOADED;
+        }
+        if (open.incrementAndGet() > MAX_CONNECTIONS) {
+            open.decrementAndGet();
+            rejectedAtLimit.increment();
+            return Rejection.TOO_MANY_CONNECTIONS;
+        }
+        boolean[] admitted = {false};
+        perAddress.compute(address, (key, count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= MAX_PER_ADDRESS) {
+                return count;
+            }
+            admitted[0] = true;
+            return current + 1;
+        });
+        if (!admitted[0]) {
+            open.decrementAndGet();
+            rejectedAtLimit.increment();
+            return Rejection.TOO_MANY_FROM_ADDRESS;
+        }
+        accepted.increment();
+        return null;
+    }
+
+    public static void release(InetAddress address) {
+        perAddress.computeIfPresent(address, (key, count) -> count <= 1 ? null : count - 1);
+        open.decrementAndGet();
+    }
+
+    // True if a rejected connection may be sent the retry hint, in which case rejectionSent() must
+    // be called once that is done; false means it should just be closed
+    public static boolean startRejection() {
+        if (rejecting.tryAcquire()) {
+            return true;
+        }
+        closedUnanswered.increment();
+        return false;
+    }
+
+    public static void rejectionSent() {
+        rejecting.release();
+    }
+
+    public static void loginTimedOut() {
+        loginTimeouts.increment();
+    }
+
+    // True if an AI request should be dropped now; counts it as shed
+    public static boolean shedAi() {
+        if (overload == null) {
+            return false;
+        }
+        aiShed.increment();
+        return true;
+    }
+
+    // For background work that should wait until the load is back to normal
+    public static boolean overloaded() {
+        return overload != null;
+    }
+
+    public static List<String> summary() {
+        String state = overload;
+        return List.of(
+            String.format("- %d open (limit %d, %d per address), %d accepted", open.get(), MAX_CONNECTIONS, MAX_PER_ADDRESS, accepted.sum()),
+            String.format("- %d rejected at the limits, %d rejected while overloaded, %d login timeouts, %d AI requests shed",
+                rejectedAtLimit.sum(), rejectedOverloaded.sum(), loginTimeouts.sum(), aiShed.sum()),
+            String.format("- %d rejections being answered (limit %d), %d closed without an answer",
+                MAX_REJECTING - rejecting.availablePermits(), MAX_REJECTING, closedUnanswered.sum()),
+            "- " + (state == null ? "Not overloaded" : "Overloaded: " + state));
+    }
+
+    private static void sample() {
+        long[] histogram = LaneMetrics.histogram(ClientConnection.Lane.CHAT);
+        long medianMicros = LaneMetrics.medianMicros(lastHistogram, histogram);
+        lastHistogram = histogram;
+
+        // Usage after the last collection, so garbage that is about to be freed does not count
+        MemoryUsage heap = null;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getCollectionUsage() != null && pool.getName().matches(".*(Old|Tenured).*")) {
+                heap = pool.getCollectionUsage();
+            }
+        }
+        if (heap == null) {
+            heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        }
+        double heapFraction = heap.getMax() > 0 ? (double) heap.getUsed() / heap.getMax() : 0;
+
+        String previous = overload;
+        if (medianMicros > MAX_LATENCY_MICROS) {
+            overload = "half of the chat lines took over " + medianMicros / 1000 + " ms to deliver";
+        } else if (heapFraction > MAX_HEAP_FRACTION) {
+            overload = String.format("heap %.0f%% full", heapFraction * 100);
+        } else {
+            overload = null;
+        }
+        if ((previous == null) != (overload == null)) {
+            Log.warn("admission", overload == null ? "Load is back to normal" : "Shedding load, " + overload);
+        }
+    }
+
+    private static void record() {
+        ChatEvents.Admission event = new ChatEvents.Admission();
+        event.open = open.get();
+        event.accepted = accepted.sum();
+        event.rejectedAtLimit = rejectedAtLimit.sum();
+        event.rejectedOverloaded = rejectedOverloaded.sum();
+        event.loginTimeouts = loginTimeouts.sum();
+        event.aiShed = aiShed.sum();
+        event.overloaded = overload != null;
+        event.commit();
+    }
+}
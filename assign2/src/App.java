@@ -1,11 +1,19 @@
 public class App {
     public static void main(String[] args) {
-        if (args.length != 1 || (!args[0].equals("server") && !args[0].equals("client"))) {
-            System.out.println("Usage: java --enable-preview App <server|client>");
+        if (args.length != 1 || (!args[0].equals("server") && !args[0].equals("client") && !args[0].equals("llm-sim"))) {
+            System.out.println("Usage: java --enable-preview App <server|client|llm-sim>");
             return;
         }
 
-        UserManager.setupUsers(); // Initialize users before starting the server or client
+        if (args[0].equals("llm-sim")) {
+            // Stand-in for the Ollama server, see LlmSimulator for its settings
+            try {
+                LlmSimulator.main(args);
+            } catch (java.io.IOException e) {
+                System.out.println("Could not start the LLM simulator: " + e.getMessage());
+            }
+            return;
+        }
 
         if (args[0].equals("server")) {
             Server.main(args);
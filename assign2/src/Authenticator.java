@@ -0,0 +1,326 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// Password logins and registrations, checked by the server. Passwords are stored in db/users.csv as
+// salted PBKDF2-HMAC-SHA256 hashes ("pbkdf2$<iterations>$<salt>$<hash>"); rows still holding a plain
+// password are accepted once and replaced by a hash.
+//
+// Hashing is deliberately slow, so it runs on a small pool of platform threads with a bounded queue
+// instead of on the connection's virtual thread: a login storm keeps those threads busy and is
+// turned away with BUSY once the queue is full, while chat traffic keeps its carrier threads.
+// A password verified in the last few minutes is remembered as a keyed digest, so a client that
+// logs in again right away does not pay for another hash.
+//
+// users.csv is an append-only log where a later row for a username replaces earlier ones. New rows
+// from concurrent registrations are written and forced to disk together by one writer thread. When a
+// plain password was upgraded, the same thread then compacts the file to the last row per user, so
+// the plain password does not stay behind in an older row.
+public class Authenticator {
+    public enum Outcome { OK, UNKNOWN_USER, WRONG_PASSWORD, USERNAME_TAKEN, INVALID, BUSY, ERROR }
+
+    private static final Path USERS_FILE = Path.of("db", "users.csv");
+    private static final int ITERATIONS = Integer.getInteger("chat.auth.iterations", 210000);
+    private static final int THREADS = Integer.getInteger("chat.auth.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int QUEUE_CAPACITY = Integer.getInteger("chat.auth.queue", 64);
+    private static final int TIMEOUT_MS = Integer.getInteger("chat.auth.timeoutMs", 10000);
+    private static final long CACHE_MILLIS = Long.getLong("chat.auth.cacheSeconds", 300) * 1000;
+    private static final Pattern VALID_USERNAME = Pattern.compile("[A-Za-z0-9_.-]{1,32}");
+    private static final String PREFIX = "pbkdf2$";
+
+    private static final SecureRandom random = new SecureRandom();
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ThreadPoolExecutor hashers = new ThreadPoolExecutor(THREADS, THREADS, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+            Thread thread = new Thread(r, "auth-hasher-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    // username -> digest of the password verified last, keyed with a secret that never leaves this process
+    private record Verified(byte[] digest, long expiresAt) {}
+    private static final Map<String, Verified> verified = new ConcurrentHashMap<>();
+    private static final byte[] cacheKey = new byte[32];
+
+    // compact: rewrite the file without superseded rows once this one is written
+    private record Row(String line, boolean compact, CompletableFuture<Void> written) {}
+    private static final BlockingQueue<Row> rows = new LinkedBlockingQueue<>();
+
+    static {
+        random.nextBytes(cacheKey);
+        Thread writer = new Thread(Authenticator::writeLoop, "auth-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static Outcome login(String username, String password) {
+        User user = UserManager.getUserByUsername(username);
+        if (user == null) {
+            return Outcome.UNKNOWN_USER;
+        }
+        byte[] digest = cacheDigest(username, password);
+        Verified recent = verified.get(username);
+        if (recent != null && recent.expiresAt() > System.currentTimeMillis() && MessageDigest.isEqual(recent.digest(), digest)) {
+            return Outcome.OK;
+        }
+
+        String stored = user.getPasswordHash();
+        Outcome outcome;
+        if (stored.startsWith(PREFIX)) {
+            outcome = onHashers(() -> matches(stored, password) ? Outcome.OK : Outcome.WRONG_PASSWORD);
+        } else if (MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8), password.getBytes(StandardCharsets.UTF_8))) {
+            // Plain password from an old users.csv, replaced by a hash now that it is known to be right
+            outcome = Outcome.OK;
+            try {
+                hashers.execute(() -> upgrade(user, password));
+            } catch (RejectedExecutionException e) {
+                // Upgraded on a later login
+            }
+        } else {
+            outcome = Outcome.WRONG_PASSWORD;
+        }
+        if (outcome == Outcome.OK) {
+            verified.put(username, new Verified(digest, System.currentTimeMillis() + CACHE_MILLIS));
+        }
+        return outcome;
+    }
+
+    public static Outcome register(String username, String password) {
+        if (!VALID_USERNAME.matcher(username).matches() || password.isEmpty()) {
+            return Outcome.INVALID;
+        }
+        // Checked before hashing so taken names cost nothing, and again atomically when adding
+        if (UserManager.getUserByUsername(username) != null) {
+            return Outcome.USERNAME_TAKEN;
+        }
+        String[] hash = new String[1];
+        Outcome hashed = onHashers(() -> {
+            hash[0] = hash(password);
+            return Outcome.OK;
+        });
+        if (hashed != Outcome.OK) {
+            return hashed;
+        }
+        if (!UserManager.addUserIfAbsent(username, hash[0], "user")) {
+            return Outcome.USERNAME_TAKEN;
+        }
+        try {
+            append(username + "," + hash[0] + ",user").get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.error("persistence", "Error saving user " + username + ": " + e.getMessage());
+            UserManager.removeUser(username);
+            return Outcome.ERROR;
+        }
+        Cluster.accountCreated(username, hash[0], "user");
+        verified.put(username, new Verified(cacheDigest(username, password), System.currentTimeMillis() + CACHE_MILLIS));
+        return Outcome.OK;
+    }
+
+    // An account registered on another node. Existing accounts are never overwritten from the
+    // cluster; if two nodes registered the same name at once, each keeps its own and it is logged.
+    public static void addFromPeer(String username, String passwordHash, String role) {
+        if (!VALID_USERNAME.matcher(username).matches() || !isHashed(passwordHash)
+                || !(role.equals("user") || role.equals("admin"))) {
+            Log.warn("auth", "Ignoring invalid account " + username + " from the cluster");
+            return;
+        }
+        if (UserManager.addUserIfAbsent(username, passwordHash, role)) {
+            append(username + "," + passwordHash + "," + role);
+            return;
+        }
+        User existing = UserManager.getUserByUsername(username);
+        if (existing != null && !existing.getPasswordHash().equals(passwordHash) && isHashed(existing.getPasswordHash())) {
+            Log.warn("auth", "Account " + username + " from the cluster conflicts with the local one, keeping the local one");
+        }
+    }
+
+    public static boolean isHashed(String stored) {
+        return stored.startsWith(PREFIX);
+    }
+
+    // Makes the next login of the user check the password again, used when they are banned
+    public static void forget(String username) {
+        verified.remove(username);
+    }
+
+    public static String hash(String password) {
+        byte[] salt = new byte[16];
+        random.nextBytes(salt);
+        Base64.Encoder b64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + ITERATIONS + "$" + b64.encodeToString(salt) + "$" + b64.encodeToString(pbkdf2(password, salt, ITERATIONS));
+    }
+
+    public static boolean matches(String stored, String password) {
+        String[] parts = stored.split("\\$");
+        if (parts.length != 4) {
+            return false;
+        }
+        Base64.Decoder b64 = Base64.getDecoder();
+        byte[] expected = b64.decode(parts[3]);
+        return MessageDigest.isEqual(expected, pbkdf2(password, b64.decode(parts[2]), Integer.parseInt(parts[1])));
+    }
+
+    private static void upgrade(User user, String password) {
+        String hash = hash(password);
+        user.setPasswordHash(hash);
+        append(user.getUsername() + "," + hash + "," + user.getRole(), true);
+    }
+
+    // Runs the hash on the pool and waits for it; BUSY when the pool is saturated or too slow
+    private static Outcome onHashers(Callable<Outcome> check) {
+        Future<Outcome> result;
+        try {
+            result = hashers.submit(check);
+        } catch (RejectedExecutionException e) {
+            Log.warn("auth", "Password hashing queue is full, turning a login away");
+            return Outcome.BUSY;
+        }
+        try {
+            return result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            return Outcome.BUSY;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Outcome.ERROR;
+        } catch (ExecutionException e) {
+            Log.error("auth", "Password check failed", e.getCause());
+            return Outcome.ERROR;
+        }
+    }
+
+    private static byte[] pbkdf2(String password, byte[] salt, int iterations) {
+        try {
+            PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, 256);
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] cacheDigest(String username, String password) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(cacheKey, "HmacSHA256"));
+            mac.update(username.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static CompletableFuture<Void> append(String line) {
+        return append(line, false);
+    }
+
+    private static CompletableFuture<Void> append(String line, boolean compact) {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        rows.add(new Row(line, compact, written));
+        return written;
+    }
+
+    // Keeps the last row of every user, in the order users first appear, and swaps the file atomically
+    private static void compact() throws IOException {
+        Map<String, String> last = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(USERS_FILE, StandardCharsets.UTF_8)) {
+            if (line.isBlank() || line.startsWith("username,password,role")) {
+                continue;
+            }
+            int comma = line.indexOf(',');
+            last.put(comma < 0 ? line : line.substring(0, comma).trim(), line);
+        }
+        StringBuilder lines = new StringBuilder("username,password,role\n");
+        for (String line : last.values()) {
+            lines.append(line).append('\n');
+        }
+        Path tmp = USERS_FILE.resolveSibling(USERS_FILE.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+        Files.move(tmp, USERS_FILE, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Group commit: everything queued while the previous batch was being forced goes out in one write
+    private static void writeLoop() {
+        List<Row> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(rows.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            rows.drainTo(batch);
+            ChatEvents.Persistence event = ChatEvents.Persistence.start("appendUsers", USERS_FILE.toString());
+            StringBuilder lines = new StringBuilder();
+            for (Row row : batch) {
+                lines.append(row.line()).append('\n');
+            }
+            try {
+                Files.createDirectories(USERS_FILE.getParent());
+                if (!Files.exists(USERS_FILE)) {
+                    lines.insert(0, "username,password,role\n");
+                }
+                try (FileChannel channel = FileChannel.open(USERS_FILE, StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                    ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    channel.force(false);
+                }
+                if (batch.stream().anyMatch(Row::compact)) {
+                    compact();
+                }
+                for (Row row : batch) {
+                    row.written().complete(null);
+                }
+                event.records = batch.size();
+                event.success = true;
+            } catch (IOException e) {
+                for (Row row : batch) {
+                    row.written().completeExceptionally(e);
+                }
+            } finally {
+                event.commit();
+            }
+            batch.clear();
+        }
+    }
+}
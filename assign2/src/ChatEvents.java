@@ -0,0 +1,173 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// Java Flight Recorder events emitted by the server. They cost next to nothing while no recording
+// is running; chat.jfc enables them with thresholds suited to an always-on recording and
+// JfrSummary reads them back from a .jfr file.
+public class ChatEvents {
+
+    @Name("chat.Message")
+    @Label("Chat Message")
+    @Category({"Chat", "Messages"})
+    @Description("A chat line from being read off the socket until it is queued for every recipient and published to the cluster")
+    @StackTrace(false)
+    static class Message extends Event {
+        @Label("Room")
+        String room;
+
+        @Label("Recipients")
+        @Description("Local room members the line was queued for on the sender's thread; large rooms count theirs in chat.Fanout")
+        int recipients;
+
+        @Label("Length")
+        int length;
+
+        @Label("Lock Wait")
+        @Description("Time spent waiting for chatRoomsLock")
+        @Timespan
+        long lockWait;
+    }
+
+    @Name("chat.Fanout")
+    @Label("Fan-out")
+    @Category({"Chat", "Messages"})
+    @Description("A line of a large room queued for its members by the fan-out workers, until the last shard is done")
+    @StackTrace(false)
+    static class Fanout extends Event {
+        @Label("Room")
+        String room;
+
+        @Label("Members")
+        int members;
+
+        @Label("Shards")
+        int shards;
+
+        @Label("Delivered")
+        @Description("Members the line was queued for; the others had a full chat lane or their shard was dropped")
+        int delivered;
+    }
+
+    @Name("chat.Persistence")
+    @Label("Persistence")
+    @Category({"Chat", "Persistence"})
+    @Description("A read or rewrite of the token, room or snapshot files")
+    @StackTrace(false)
+    static class Persistence extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("File")
+        String file;
+
+        @Label("Records")
+        int records;
+
+        @Label("Success")
+        boolean success;
+
+        static Persistence start(String operation, String file) {
+            Persistence event = new Persistence();
+            event.operation = operation;
+            event.file = file;
+            event.begin();
+            return event;
+        }
+    }
+
+    @Name("chat.AiBatch")
+    @Label("AI Batch")
+    @Category({"Chat", "AI"})
+    @Description("One pass of an AI room bot: buffered lines sent to the model and the reply broadcast")
+    @StackTrace(false)
+    static class AiBatch extends Event {
+        @Label("Room")
+        String room;
+
+        @Label("Messages")
+        int messages;
+
+        @Label("Reply Length")
+        int replyChars;
+    }
+
+    @Name("chat.LlmCall")
+    @Label("LLM Call")
+    @Category({"Chat", "AI"})
+    @Description("HTTP request to the language model")
+    @StackTrace(false)
+    static class LlmCall extends Event {
+        @Label("Model")
+        String model;
+
+        @Label("Prompt Length")
+        int promptChars;
+
+        @Label("Response Length")
+        int responseChars;
+
+        @Label("Success")
+        boolean success;
+
+        @Label("Error")
+        String error;
+    }
+
+    @Name("chat.TlsHandshake")
+    @Label("TLS Handshake")
+    @Category({"Chat", "Network"})
+    @Description("TLS handshake of an accepted client connection")
+    @StackTrace(false)
+    static class TlsHandshake extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Protocol")
+        String protocol;
+
+        @Label("Cipher Suite")
+        String cipherSuite;
+
+        @Label("Success")
+        boolean success;
+
+        @Label("Error")
+        String error;
+    }
+
+    @Name("chat.Admission")
+    @Label("Admission")
+    @Category({"Chat", "Network"})
+    @Description("Connection admission and load shedding counters, totals since the server started")
+    @Period("10 s")
+    @StackTrace(false)
+    static class Admission extends Event {
+        @Label("Open Connections")
+        int open;
+
+        @Label("Accepted")
+        long accepted;
+
+        @Label("Rejected At Limit")
+        @Description("Connections turned away because the server or their address had too many open")
+        long rejectedAtLimit;
+
+        @Label("Rejected Overloaded")
+        long rejectedOverloaded;
+
+        @Label("Login Timeouts")
+        long loginTimeouts;
+
+        @Label("AI Requests Shed")
+        long aiShed;
+
+        @Label("Overloaded")
+        boolean overloaded;
+    }
+}
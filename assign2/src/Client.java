@@ -1,11 +1,13 @@
 import java.net.*;
 import java.io.*;
+import java.util.List;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 public class Client {
-    private static final int PORT = 8080;
-    private static final String HOST = "127.0.0.1";
+    // Comma separated host:port list, the client moves to the next server when reconnecting
+    private static final String[] SERVERS = System.getProperty("chat.servers", "127.0.0.1:8080").split(",");
+    private static int serverIndex = 0;
     private static SSLSocket socket;
     private static boolean running = true;
     private static boolean connected = false;
@@ -15,10 +17,25 @@ public class Client {
     private static PrintWriter out;
     private static User user;
     private static String tokenString = "";
+    // LOGIN:<password> or REGISTER:<password>, sent when there is no token and forgotten once accepted
+    private static String credentials = null;
     private static String currentRoom = "general"; 
+    // Every room the client is in, sent by the server whenever it changes
+    private static List<String> rooms = List.of("general");
     private static final int RECONNECT_DELAY_MS = 2000;
     private static final int MAX_RECONNECT_ATTEMPTS = 5;
+    // The server pings idle connections, so silence for longer than this means the server is gone
+    private static final int SERVER_TIMEOUT_MS = Integer.getInteger("chat.heartbeat.clientTimeoutMs", 40000);
     
+    // The server turned the credentials or the session token down
+    private static class AuthenticationException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        AuthenticationException(String message) {
+            super(message);
+        }
+    }
+
     public static void main(String[] args) {
         authenticateUser();
         
@@ -49,12 +66,8 @@ public class Client {
                         if (!running) {
                             break;
                         }
-                        // Track room changes
-                        if (message.startsWith("/join ")) {
-                            currentRoom = message.substring(6).trim();
-                        } else if (message.equals("/leave")) {
-                            currentRoom = "general";
-                        } else if (message.equals("/disconnect")) {
+                        // Room changes are tracked from the server's ROOMS: lines
+                        if (message.equals("/disconnect")) {
                             disconnectFromServer();
                             break;
                         }
@@ -75,6 +88,9 @@ public class Client {
                         running = false;
                     }
                 }
+            } catch (AuthenticationException e) {
+                System.out.println(e.getMessage());
+                authenticateUser();
             } catch (IOException e) {
                 System.out.println("\rConnection lost. Attempting to reconnect in " + (RECONNECT_DELAY_MS/1000) + " seconds...");
                 reconnectAttempts++;
@@ -110,8 +126,15 @@ public class Client {
         }
 
         SSLSocketFactory sslSocketFactory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-        socket = (SSLSocket) sslSocketFactory.createSocket(HOST, PORT);
-        System.out.println("Connected to server at " + HOST + ":" + PORT);
+        String server = SERVERS[serverIndex % SERVERS.length].trim();
+        // Try the next server on the following attempt if this one fails
+        serverIndex++;
+        String host = server.substring(0, server.lastIndexOf(':'));
+        int port = Integer.parseInt(server.substring(server.lastIndexOf(':') + 1));
+        socket = (SSLSocket) sslSocketFactory.createSocket(host, port);
+        socket.setSoTimeout(SERVER_TIMEOUT_MS);
+        serverIndex--;
+        System.out.println("Connected to server at " + host + ":" + port);
 
         in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
         out = new PrintWriter(socket.getOutputStream(), true);
@@ -121,12 +144,53 @@ public class Client {
         // Send username and token for authentication/reconnection
         out.println(user.getUsername());
         out.println(tokenString); // Send token string (empty on first login)
-        
+        if (tokenString.isEmpty()) {
+            out.println(credentials);
+        }
+
+        // The server answers with AUTH_OK:<role> or AUTH_FAIL:<reason> before anything else
+        String reply = in.readLine();
+        if (reply != null && reply.startsWith("RETRY:")) {
+            // Not admitted right now, wait as long as the server asks before the next attempt
+            String[] parts = reply.split(":", 3);
+            try {
+                socket.close();
+            } catch (IOException e) {}
+            System.out.println(parts[2]);
+            try {
+                Thread.sleep(Math.min(60, Integer.parseInt(parts[1])) * 1000L);
+            } catch (InterruptedException | NumberFormatException e) {}
+            throw new IOException(parts[2]);
+        }
+        if (reply == null || !reply.startsWith("AUTH_OK:")) {
+            try {
+                socket.close();
+            } catch (IOException e) {}
+            String reason = reply != null && reply.startsWith("AUTH_FAIL:") ? reply.substring(10) : "The server closed the connection.";
+            if (!tokenString.isEmpty()) {
+                // Session expired or revoked, log in again
+                tokenString = "";
+                user.setToken(null);
+                System.out.println(reason);
+                authenticateUser();
+                return;
+            }
+            throw new AuthenticationException(reason);
+        }
+        credentials = null;
+        user.setRole(reply.substring(8));
+
         // Start listening for server messages
         Thread serverListener = new Thread(() -> {
             try {
                 String serverMessage;
                 while (connected && (serverMessage = in.readLine()) != null) {
+                    // Answer heartbeats without showing them
+                    if (serverMessage.startsWith("PING:")) {
+                        out.println("PONG:" + serverMessage.substring(5));
+                        continue;
+                    }
+
                     // If we receive a token from server, save it
                     if (serverMessage.startsWith("TOKEN:")) {
                         tokenString = serverMessage.substring(6);
@@ -165,32 +229,13 @@ public class Client {
                         continue; 
                     }
                     
-                    // Handle session expiration
-                    if (serverMessage.equals("Your session has expired. Please login again.")) {
-                        // Clear the token so we'll login again on next connection
-                        tokenString = "";
-                        if (user.getToken() != null) {
-                            user.setToken(null);
-                        }
-                        
-                        System.out.println(serverMessage);
-                        // Force reconnection with new authentication
-                        disconnectFromServer();
-                        try {
-                            authenticateUser(); // Re-authenticate the user
-                            connectToServer();  // And reconnect
-                            connected = true;
-                        } catch (IOException e) {
-                            System.out.println("Failed to reconnect after session expiration.");
-                        }
+                    // The rooms the client is in, the one its messages go to first
+                    if (serverMessage.startsWith("ROOMS:")) {
+                        rooms = List.of(serverMessage.substring(6).split("\t"));
+                        currentRoom = rooms.get(0);
                         continue;
                     }
                     
-                    // Capture room join confirmations to update current room
-                    if (serverMessage.startsWith("You joined the room: ")) {
-                        currentRoom = serverMessage.substring("You joined the room: ".length());
-                    }
-                    
                     System.out.print("\r");  // Clear line
                     System.out.println(serverMessage);
                     System.out.print(user.getUsername() + ": ");
@@ -221,7 +266,7 @@ public class Client {
                     }
                 }
             } catch (IOException e) {
-                // Server disconnected unexpectedly
+                // Server disconnected unexpectedly or stopped answering (read timeout)
                 if (running && !voluntaryDisconnect) {
                     System.out.println("\rConnection lost. Attempting to reconnect...");
                     connected = false;
@@ -298,10 +343,13 @@ public class Client {
                 System.out.println("Available commands:");
                 System.out.println("/create <room_name> - Create a new chat room");
                 System.out.println("/create ai:<room_name>:<room_theme> - Create a new chat room with an AI chatbot");
-                System.out.println("/join <room_name> - Join an existing chat room");
-                System.out.println("/leave - Leave the current chat room and return to 'general'");
+                System.out.println("/join <room_name> - Join a chat room and send your messages there, you stay in the other rooms");
+                System.out.println("/leave [room_name] - Leave the current chat room or the given one");
                 System.out.println("/rooms - List all available chat rooms");
                 System.out.println("/users - List all users in the current room");
+                System.out.println("/msg <username> <message> - Send a private message to a user");
+                System.out.println("/who [room] - Show who is online in the current room or the given one");
+                System.out.println("/summary [room] - Catch up on an AI room with a summary of its conversation");
                 System.out.println("/help - Show this help message");
                 System.out.println("/status - Show the current status of the client");
                 System.out.println("/disconnect - Disconnect from server but keep program running");
@@ -314,11 +362,15 @@ public class Client {
                     System.out.println("/promote <username> - Promote a user to admin role");
                     System.out.println("/demote <username> - Demote an admin to regular user");
                     System.out.println("/stats - Show server statistics and active connections");
+                    System.out.println("/search <terms> [room] - Search the chat history, from:<username> matches an author");
+                    System.out.println("/block <term> [reject] - Mask a word in every message, or reject messages containing it");
+                    System.out.println("/unblock <term> - Remove a blocked term");
+                    System.out.println("/blocked - List the blocked terms");
                 }
                 break;
             
             // These commands are handled by the server
-            case "/create": case "/join": case "/leave": case "/rooms": case "/users": case "/kick": case "/ban": case "/delete": case "/mute": case "/unmute": case "/announce": case "/promote": case "/demote": case "/stats":
+            case "/create": case "/join": case "/leave": case "/rooms": case "/users": case "/msg": case "/who": case "/summary": case "/kick": case "/ban": case "/delete": case "/mute": case "/unmute": case "/announce": case "/promote": case "/demote": case "/stats": case "/search": case "/block": case "/unblock": case "/blocked":
                 break;
 
             case "/status":
@@ -329,6 +381,9 @@ public class Client {
                     System.out.println("Role: User");
                 }
                 System.out.println("Current room: " + currentRoom);
+                if (rooms.size() > 1) {
+                    System.out.println("Also in: " + String.join(", ", rooms.subList(1, rooms.size())));
+                }
                 System.out.println("Connected: " + connected);
                 if (user.getToken() == null) {
                     System.out.println("No token available.");
@@ -345,38 +400,41 @@ public class Client {
         }
     }
 
+    // Asks for credentials until the server accepts them, leaving the client connected
     private static void authenticateUser() {
-        boolean authenticated = false;
-        
         if (user != null && !tokenString.isEmpty()) {
             System.out.println("Using saved authentication token.");
             return;
         }
 
-        while (!authenticated) {
+        while (true) {
             System.out.println("1 - Login \n2 - Register");
             String choice = System.console().readLine();
-            switch (choice) {
-                case "1":
-                    if ((user = User.loginUser()) == null) {
-                        continue;
-                    } else {
-                        System.out.println("Login successful!");
-                        authenticated = true;
-                    }
-                    break;
-                case "2":
-                    if ((user = User.registerUser()) == null) {
-                        System.out.println("Registration failed. Please try again.");
-                    } else {
-                        System.out.println("Registration successful!");
-                        authenticated = true;
-                    }
-                    break;
-                default:
-                    System.out.println("Invalid option. Please try again.");
-                    break;
+            if (!choice.equals("1") && !choice.equals("2")) {
+                System.out.println("Invalid option. Please try again.");
+                continue;
+            }
+            System.out.println("Enter username: ");
+            String username = System.console().readLine();
+            System.out.println("Enter password: ");
+            String password = new String(System.console().readPassword());
+            user = new User(username, null, "user");
+            credentials = (choice.equals("1") ? "LOGIN:" : "REGISTER:") + password;
+            try {
+                connectToServer();
+                connected = true;
+                System.out.println(choice.equals("1") ? "Login successful!" : "Registration successful!");
+                return;
+            } catch (AuthenticationException e) {
+                System.out.println(e.getMessage());
+                if (choice.equals("2")) {
+                    System.out.println("Registration failed. Please try again.");
+                }
+            } catch (IOException e) {
+                // The main loop keeps retrying with the same credentials
+                System.out.println("Could not connect to the server: " + e.getMessage());
+                return;
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,244 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Output side of one client socket. Frames from other threads are queued on one of two lanes and
+// written by the connection's writer thread, which always empties the control lane (bans, role
+// changes, mutes, announcements, heartbeats) before taking the next chat line. The lines the
+// handler writes through getWriter() share the same write lock, so lines never interleave.
+public class ClientConnection {
+    public enum Lane { CONTROL, CHAT }
+
+    // A slow reader can hold at most this many chat lines, the rest are dropped
+    private static final int MAX_CHAT_BACKLOG = Integer.getInteger("chat.lane.maxChatBacklog", 2000);
+    private static final int MAX_BATCH = 32;
+
+    private record Pending(Frame frame, Lane lane, long enqueuedNanos) {}
+
+    private final Queue<Pending> controlLane = new ConcurrentLinkedQueue<>();
+    private final Queue<Pending> chatLane = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger chatBacklog = new AtomicInteger();
+    private final Semaphore ready = new Semaphore(0);
+    private volatile boolean closing = false;
+    private volatile boolean closed = false;
+
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    private final int id = nextId.getAndIncrement();
+    private final Socket socket;
+    private final OutputStream out;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final PrintWriter writer;
+    private volatile long lastSeenNanos = System.nanoTime();
+    private TimerWheel.Timeout heartbeat;
+    // Symbols.ROOMS ids of the rooms the connection is in, the reverse of RoomMembers. Replaced on
+    // every change so callers can walk it while rooms are left. Guarded by chatRoomsLock in Server
+    private int[] rooms = new int[0];
+
+    ClientConnection(Socket socket) throws IOException {
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+        this.writer = new PrintWriter(new LineWriter(), true);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public Socket getSocket() {
+        return socket;
+    }
+
+    // Writer for the connection's own handler thread, flushed on every println
+    public PrintWriter getWriter() {
+        return writer;
+    }
+
+    // Called for every line received from the client
+    public void touch() {
+        lastSeenNanos = System.nanoTime();
+    }
+
+    public long idleMillis() {
+        return (System.nanoTime() - lastSeenNanos) / 1_000_000;
+    }
+
+    public int[] getRooms() {
+        return rooms;
+    }
+
+    public void addRoom(int room) {
+        for (int r : rooms) {
+            if (r == room) {
+                return;
+            }
+        }
+        int[] grown = Arrays.copyOf(rooms, rooms.length + 1);
+        grown[rooms.length] = room;
+        rooms = grown;
+    }
+
+    public void removeRoom(int room) {
+        for (int i = 0; i < rooms.length; i++) {
+            if (rooms[i] == room) {
+                int[] shrunk = Arrays.copyOf(rooms, rooms.length - 1);
+                System.arraycopy(rooms, i + 1, shrunk, i, rooms.length - i - 1);
+                rooms = shrunk;
+                return;
+            }
+        }
+    }
+
+    public TimerWheel.Timeout getHeartbeat() {
+        return heartbeat;
+    }
+
+    public void setHeartbeat(TimerWheel.Timeout heartbeat) {
+        this.heartbeat = heartbeat;
+    }
+
+    // The writer is a task of the connection's scope, which stops it when the connection ends
+    public void startWriter(ConnectionScope scope) {
+        scope.fork(() -> {
+            writeLoop();
+            return null;
+        });
+    }
+
+    // Queues a frame without blocking; the connection takes its own reference to it
+    public boolean send(Frame frame, Lane lane) {
+        if (closed || (closing && lane == Lane.CHAT)) {
+            return false;
+        }
+        if (lane == Lane.CHAT && chatBacklog.incrementAndGet() > MAX_CHAT_BACKLOG) {
+            chatBacklog.decrementAndGet();
+            LaneMetrics.dropped(lane);
+            return false;
+        }
+        frame.retain();
+        (lane == Lane.CONTROL ? controlLane : chatLane).add(new Pending(frame, lane, System.nanoTime()));
+        ready.release();
+        return true;
+    }
+
+    public boolean sendControl(String line) {
+        Frame frame = Frame.of(line);
+        try {
+            return send(frame, Lane.CONTROL);
+        } finally {
+            frame.release();
+        }
+    }
+
+    // Delivers what is already on the control lane, then closes the socket. Pending chat is dropped.
+    public void closeAfterControl() {
+        closing = true;
+        ready.release();
+    }
+
+    public void close() {
+        closed = true;
+        ready.release();
+    }
+
+    private void writeLoop() {
+        Pending[] batch = new Pending[MAX_BATCH];
+        try {
+            while (!closed) {
+                ready.acquire();
+                int size = 0;
+                do {
+                    Pending next = controlLane.poll();
+                    if (next == null && !closing) {
+                        next = chatLane.poll();
+                        if (next != null) {
+                            chatBacklog.decrementAndGet();
+                        }
+                    }
+                    if (next == null) {
+                        break;
+                    }
+                    batch[size++] = next;
+                } while (size < MAX_BATCH && ready.tryAcquire());
+
+                if (size > 0) {
+                    writeLock.lock();
+                    try {
+                        for (int i = 0; i < size; i++) {
+                            batch[i].frame().writeTo(out);
+                        }
+                        out.flush();
+                    } finally {
+                        writeLock.unlock();
+                    }
+                    long now = System.nanoTime();
+                    for (int i = 0; i < size; i++) {
+                        LaneMetrics.record(batch[i].lane(), now - batch[i].enqueuedNanos());
+                        batch[i].frame().release();
+                        batch[i] = null;
+                    }
+                }
+                if (closing && controlLane.isEmpty()) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Log.debug("fanout", "Write to " + socket.getInetAddress() + " failed: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closed = true;
+            releaseQueued(controlLane);
+            releaseQueued(chatLane);
+            if (closing) {
+                try {
+                    socket.close();
+                } catch (IOException e) {}
+            }
+        }
+    }
+
+    private void releaseQueued(Queue<Pending> lane) {
+        Pending pending;
+        while ((pending = lane.poll()) != null) {
+            pending.frame().release();
+        }
+    }
+
+    // Collects what the PrintWriter writes and sends it as whole lines on flush
+    private class LineWriter extends Writer {
+        private final StringBuilder pending = new StringBuilder();
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            pending.append(cbuf, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (pending.length() == 0) {
+                return;
+            }
+            byte[] bytes = pending.toString().getBytes(StandardCharsets.UTF_8);
+            pending.setLength(0);
+            writeLock.lock();
+            try {
+                out.write(bytes);
+                out.flush();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
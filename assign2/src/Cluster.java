@@ -0,0 +1,666 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+// Links several Server processes together. Every node connects to every peer listed in
+// -Dchat.cluster.peers=id@host:port,... and uses that link only for sending; the peer's own
+// link to us is used for receiving. Room traffic is only sent to peers that told us (SUB)
+// they have local members in that room.
+//
+// Peers prove to each other that they know the shared -Dchat.cluster.secret before anything else
+// is exchanged: the listening node sends a random challenge, the connecting node answers with an
+// HMAC of it, its id and a challenge of its own, and the listening node answers that one in turn.
+// Only ids from chat.cluster.peers are accepted, and a link that fails the handshake is closed.
+// The listener binds to -Dchat.cluster.bind, loopback unless set.
+//
+// Peer links carry session tokens, password hashes and private messages, so like client
+// connections they run over TLS: the listener uses the server's keystore, and the connecting
+// side trusts the certificates in -Dchat.cluster.trustStore (truststore.jks unless set).
+public class Cluster {
+    private static final int QUEUE_CAPACITY = 10000;
+    private static final int RECONNECT_DELAY_MS = 1000;
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+
+    private static final SecureRandom random = new SecureRandom();
+    private static byte[] secret;
+    private static SSLSocketFactory peerSockets;
+
+    private static String nodeId;
+    private static boolean enabled = false;
+    private static volatile HashRing ring;
+
+    // Fields each message needs at least; later fields are ignored, so newer nodes can add some
+    private static final Map<String, Integer> FIELDS = Map.ofEntries(
+        Map.entry("SUB", 2), Map.entry("UNSUB", 2), Map.entry("MSG", 4), Map.entry("ROOM", 3),
+        Map.entry("SESSION", 4), Map.entry("REVOKE", 3), Map.entry("LOCATION", 2), Map.entry("ANNOUNCE", 2),
+        Map.entry("KICK", 3), Map.entry("ONLINE", 2), Map.entry("OFFLINE", 2), Map.entry("DM", 4),
+        Map.entry("MAILBOX", 2), Map.entry("MAIL", 5), Map.entry("MAILACK", 4), Map.entry("FILTER", 3),
+        Map.entry("ACCOUNT", 4), Map.entry("USER", 3), Map.entry("SUMMARY", 5));
+
+    private static final Map<String, Peer> peers = new ConcurrentHashMap<>();
+    // room -> peers that currently have members in that room
+    private static final Map<String, Set<String>> remoteInterest = new ConcurrentHashMap<>();
+    // rooms that have at least one member connected to this node
+    private static final Set<String> localRooms = ConcurrentHashMap.newKeySet();
+    // username -> node the user is connected to, for users connected to other nodes
+    private static final Map<String, String> remoteUsers = new ConcurrentHashMap<>();
+
+    public static void init(int clientPort) {
+        nodeId = System.getProperty("chat.node.id", "node-" + clientPort);
+        ring = new HashRing(List.of(nodeId));
+
+        String peerList = System.getProperty("chat.cluster.peers", "").trim();
+        if (peerList.isEmpty()) {
+            return;
+        }
+        for (String spec : peerList.split(",")) {
+            String[] idAndAddress = spec.trim().split("@", 2);
+            int colon = idAndAddress[1].lastIndexOf(':');
+            String host = idAndAddress[1].substring(0, colon);
+            int port = Integer.parseInt(idAndAddress[1].substring(colon + 1));
+            peers.put(idAndAddress[0], new Peer(idAndAddress[0], host, port));
+        }
+        String sharedSecret = System.getProperty("chat.cluster.secret", "");
+        if (sharedSecret.isEmpty()) {
+            Log.error("cluster", "chat.cluster.peers is set but chat.cluster.secret is not, running without a cluster");
+            peers.clear();
+            return;
+        }
+        secret = sharedSecret.getBytes(StandardCharsets.UTF_8);
+        try {
+            peerSockets = peerSocketFactory();
+        } catch (IOException | GeneralSecurityException e) {
+            Log.error("cluster", "Could not load the cluster trust store, running without a cluster: " + e.getMessage());
+            peers.clear();
+            return;
+        }
+        enabled = true;
+
+        int clusterPort = Integer.getInteger("chat.cluster.port", clientPort + 1000);
+        String bindAddress = System.getProperty("chat.cluster.bind", "127.0.0.1");
+        Thread.startVirtualThread(() -> acceptPeers(bindAddress, clusterPort));
+        for (Peer peer : peers.values()) {
+            Thread.startVirtualThread(peer::run);
+        }
+        Log.info("cluster", "Cluster node " + nodeId + " listening for peers on " + bindAddress + ":" + clusterPort);
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static String getNodeId() {
+        return nodeId;
+    }
+
+    // The node that owns a room runs its AI bot, so each AI room is answered exactly once
+    public static boolean isOwner(String roomName) {
+        return !enabled || nodeId.equals(ring.nodeFor(roomName));
+    }
+
+    public static void publish(String roomName, String line, boolean aiRoom) {
+        if (!enabled) {
+            return;
+        }
+        Set<String> targets = ConcurrentHashMap.newKeySet();
+        Set<String> interested = remoteInterest.get(roomName);
+        if (interested != null) {
+            targets.addAll(interested);
+        }
+        if (aiRoom) {
+            String owner = ring.nodeFor(roomName);
+            if (!nodeId.equals(owner)) {
+                targets.add(owner);
+            }
+        }
+        String message = encode("MSG", roomName, line, aiRoom ? "1" : "0");
+        for (String target : targets) {
+            Peer peer = peers.get(target);
+            if (peer != null) {
+                peer.send(message);
+            }
+        }
+    }
+
+    // Called with the number of local members whenever a room's membership changes
+    public static void localRoomSize(String roomName, int size) {
+        if (!enabled) {
+            return;
+        }
+        if (size > 0 && localRooms.add(roomName)) {
+            sendToAll(encode("SUB", roomName));
+        } else if (size == 0 && localRooms.remove(roomName)) {
+            sendToAll(encode("UNSUB", roomName));
+        }
+    }
+
+    public static void roomCreated(String roomName, String aiPrompt) {
+        if (enabled) {
+            sendToAll(encode("ROOM", roomName, aiPrompt == null ? "" : aiPrompt));
+        }
+    }
+
+    public static void sessionUpdated(Token token) {
+        if (enabled) {
+            Token.Signed signed = token.getSigned();
+            sendToAll(encode("SESSION", token.getUsername(), signed.token(), String.valueOf(signed.expirationTime())));
+        }
+    }
+
+    public static void sessionRevoked(String username, long until) {
+        if (enabled) {
+            sendToAll(encode("REVOKE", username, String.valueOf(until)));
+        }
+    }
+
+    // The rooms a user is in, the one their messages go to first
+    public static void locationUpdated(String username, List<String> rooms) {
+        if (enabled) {
+            sendToAll(encode(locationFields(username, rooms)));
+        }
+    }
+
+    static String[] locationFields(String username, List<String> rooms) {
+        String[] fields = new String[rooms.size() + 2];
+        fields[0] = "LOCATION";
+        fields[1] = username;
+        for (int i = 0; i < rooms.size(); i++) {
+            fields[i + 2] = rooms.get(i);
+        }
+        return fields;
+    }
+
+    public static void announce(String line) {
+        if (enabled) {
+            sendToAll(encode("ANNOUNCE", line));
+        }
+    }
+
+    public static void kick(String username, String line) {
+        if (enabled) {
+            sendToAll(encode("KICK", username, line));
+        }
+    }
+
+    public static void userOnline(String username) {
+        if (enabled) {
+            sendToAll(encode("ONLINE", username));
+        }
+    }
+
+    public static void userOffline(String username) {
+        if (enabled) {
+            sendToAll(encode("OFFLINE", username));
+        }
+    }
+
+    // The node another user is connected to, null if they are not connected to any peer
+    public static String nodeOf(String username) {
+        return enabled ? remoteUsers.get(username) : null;
+    }
+
+    // Offline messages for a user are kept by one node, so they are found wherever the user logs in
+    public static String mailboxNode(String username) {
+        return enabled ? ring.nodeFor("@" + username) : nodeId;
+    }
+
+    public static void directMessage(String targetNode, String from, String to, String text) {
+        sendTo(targetNode, encode("DM", from, to, text));
+    }
+
+    // Asks the node keeping the user's offline messages to send them over
+    public static void requestMailbox(String targetNode, String username) {
+        sendTo(targetNode, encode("MAILBOX", username));
+    }
+
+    // A batch of the user's mailbox; it stays on this node until the target confirms it with MAILACK
+    public static void sendMailbox(String targetNode, String username, long firstTime, int count, String block) {
+        sendTo(targetNode, encode("MAIL", username, String.valueOf(firstTime), String.valueOf(count), block));
+    }
+
+    public static void mailboxDelivered(String mailboxNode, String username, long firstTime, int count) {
+        sendTo(mailboxNode, encode("MAILACK", username, String.valueOf(firstTime), String.valueOf(count)));
+    }
+
+    // The whole blocked term list goes out on every change with its version, and nodes only take
+    // a list newer than their own
+    public static void filterChanged(ContentFilter.Versioned list) {
+        if (enabled) {
+            sendToAll(encode(filterFields(list)));
+        }
+    }
+
+    static String[] filterFields(ContentFilter.Versioned list) {
+        String[] fields = new String[3 + list.terms().size() * 2];
+        fields[0] = "FILTER";
+        fields[1] = String.valueOf(list.version());
+        fields[2] = list.node();
+        int i = 3;
+        for (Map.Entry<String, ContentFilter.Action> entry : list.terms().entrySet()) {
+            fields[i++] = entry.getKey();
+            fields[i++] = entry.getValue().name();
+        }
+        return fields;
+    }
+
+    private static void sendTo(String targetNode, String message) {
+        Peer peer = peers.get(targetNode);
+        if (peer != null) {
+            peer.send(message);
+        }
+    }
+
+    // Users registered on any node can log in on every node
+    public static void accountCreated(String username, String passwordHash, String role) {
+        if (enabled) {
+            sendToAll(encode("ACCOUNT", username, passwordHash, role));
+        }
+    }
+
+    public static void userStateChanged(String username, String state) {
+        if (enabled) {
+            sendToAll(encode("USER", username, state));
+        }
+    }
+
+    // Only the node owning an AI room has its history, the others serve /summary from this copy
+    public static void summaryUpdated(String roomName, RoomSummaries.Summary summary) {
+        if (enabled) {
+            sendToAll(encode(summaryFields(roomName, summary)));
+        }
+    }
+
+    static String[] summaryFields(String roomName, RoomSummaries.Summary summary) {
+        return new String[] {"SUMMARY", roomName, String.valueOf(summary.covered()), String.valueOf(summary.updatedAt()), summary.text()};
+    }
+
+    private static void sendToAll(String message) {
+        for (Peer peer : peers.values()) {
+            peer.send(message);
+        }
+    }
+
+    private static void rebuildRing() {
+        List<String> live = new ArrayList<>();
+        live.add(nodeId);
+        for (Peer peer : peers.values()) {
+            if (peer.connected) {
+                live.add(peer.id);
+            }
+        }
+        ring = new HashRing(live);
+    }
+
+    // Trusts only the certificates in the cluster trust store, not the JDK's default authorities
+    private static SSLSocketFactory peerSocketFactory() throws IOException, GeneralSecurityException {
+        KeyStore trusted = KeyStore.getInstance(KeyStore.getDefaultType());
+        try (InputStream stream = new FileInputStream(System.getProperty("chat.cluster.trustStore", "truststore.jks"))) {
+            trusted.load(stream, System.getProperty("chat.cluster.trustStorePassword", "password123").toCharArray());
+        }
+        TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trust.init(trusted);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trust.getTrustManagers(), null);
+        return context.getSocketFactory();
+    }
+
+    private static void acceptPeers(String bindAddress, int clusterPort) {
+        SSLServerSocketFactory factory = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
+        try (ServerSocket listener = factory.createServerSocket(clusterPort, 50, InetAddress.getByName(bindAddress))) {
+            while (true) {
+                SSLSocket socket = (SSLSocket) listener.accept();
+                Thread.startVirtualThread(() -> readPeer(socket));
+            }
+        } catch (IOException e) {
+            Log.error("cluster", "Cluster listener stopped: " + e.getMessage());
+        }
+    }
+
+    private static void readPeer(SSLSocket socket) {
+        String peerId = null;
+        try {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            socket.startHandshake();
+        } catch (IOException e) {
+            Log.warn("cluster", "Refused cluster link from " + socket.getInetAddress() + ": TLS handshake failed");
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+            return;
+        }
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)) {
+            peerId = authenticatePeer(socket, in, out);
+            if (peerId == null) {
+                return;
+            }
+            Log.info("cluster", "Cluster peer " + peerId + " connected");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = decode(line);
+                Integer needed = FIELDS.get(fields[0]);
+                if (needed == null) {
+                    Log.warn("cluster", "Unknown cluster message from " + peerId + ": " + fields[0]);
+                    continue;
+                }
+                if (fields.length < needed) {
+                    Log.warn("cluster", "Skipped " + fields[0] + " from " + peerId + " with " + fields.length + " fields, expected " + needed);
+                    continue;
+                }
+                // One bad line must not take down the link and every room interest it carries
+                try {
+                    handle(peerId, fields);
+                } catch (RuntimeException e) {
+                    Log.warn("cluster", "Skipped malformed " + fields[0] + " from " + peerId + ": " + e);
+                }
+            }
+        } catch (IOException e) {
+            // Peer went away, its interest is dropped below
+        } finally {
+            if (peerId != null) {
+                for (Set<String> interested : remoteInterest.values()) {
+                    interested.remove(peerId);
+                }
+                remoteUsers.values().removeIf(peerId::equals);
+                Log.info("cluster", "Cluster peer " + peerId + " disconnected");
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {}
+        }
+    }
+
+    // Listening side of the handshake; returns the peer's id, or null after logging why it was refused
+    private static String authenticatePeer(Socket socket, BufferedReader in, Writer out) throws IOException {
+        String challenge = nonce();
+        out.write(encode("CHALLENGE", challenge) + "\n");
+        out.flush();
+        String line = in.readLine();
+        String[] hello = line == null ? new String[0] : decode(line);
+        if (hello.length != 4 || !hello[0].equals("HELLO") || !peers.containsKey(hello[1])
+                || !MessageDigest.isEqual(proof("HELLO", challenge, hello[1], nodeId).getBytes(StandardCharsets.UTF_8),
+                    hello[3].getBytes(StandardCharsets.UTF_8))) {
+            Log.warn("cluster", "Refused cluster link from " + socket.getInetAddress() + ": handshake failed");
+            return null;
+        }
+        out.write(encode("WELCOME", proof("WELCOME", hello[2], nodeId, hello[1])) + "\n");
+        out.flush();
+        socket.setSoTimeout(0);
+        return hello[1];
+    }
+
+    // HMAC of the fields with the cluster secret, in Base64
+    private static String proof(String... fields) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return Base64.getEncoder().encodeToString(mac.doFinal(encode(fields).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 not available", e);
+        }
+    }
+
+    private static String nonce() {
+        byte[] bytes = new byte[24];
+        random.nextBytes(bytes);
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    private static void handle(String peerId, String[] fields) {
+        switch (fields[0]) {
+            case "SUB":
+                remoteInterest.computeIfAbsent(fields[1], k -> ConcurrentHashMap.newKeySet()).add(peerId);
+                break;
+            case "UNSUB":
+                Set<String> interested = remoteInterest.get(fields[1]);
+                if (interested != null) {
+                    interested.remove(peerId);
+                }
+                break;
+            case "MSG":
+                Server.onClusterMessage(fields[1], fields[2], "1".equals(fields[3]) && isOwner(fields[1]));
+                break;
+            case "ROOM":
+                Server.onClusterRoom(fields[1], fields[2].isEmpty() ? null : fields[2]);
+                break;
+            case "SESSION":
+                // Tokens are signed, so only the token itself is trusted, not the fields next to it
+                Token session = Token.verify(fields[2]);
+                if (session == null || !session.getUsername().equals(fields[1])) {
+                    Log.warn("cluster", "Ignored a session for " + fields[1] + " from " + peerId + " with an invalid token");
+                } else {
+                    Server.onClusterSession(session);
+                }
+                break;
+            case "REVOKE":
+                Server.onClusterRevoke(fields[1], Long.parseLong(fields[2]));
+                break;
+            case "LOCATION":
+                Server.onClusterLocation(fields[1], Arrays.asList(fields).subList(2, fields.length));
+                break;
+            case "ANNOUNCE":
+                Server.onClusterAnnounce(fields[1]);
+                break;
+            case "KICK":
+                Server.onClusterKick(fields[1], fields[2]);
+                break;
+            case "ONLINE":
+                remoteUsers.put(fields[1], peerId);
+                break;
+            case "OFFLINE":
+                remoteUsers.remove(fields[1], peerId);
+                break;
+            case "DM":
+                Server.onClusterDirectMessage(fields[1], fields[2], fields[3]);
+                break;
+            case "MAILBOX":
+                Server.onClusterMailboxRequest(peerId, fields[1]);
+                break;
+            case "MAIL":
+                Server.onClusterMailbox(peerId, fields[1], Long.parseLong(fields[2]), Integer.parseInt(fields[3]), fields[4]);
+                break;
+            case "MAILACK":
+                Server.onClusterMailboxDelivered(peerId, fields[1], Long.parseLong(fields[2]), Integer.parseInt(fields[3]));
+                break;
+            case "FILTER":
+                Map<String, ContentFilter.Action> terms = new LinkedHashMap<>();
+                for (int i = 3; i + 1 < fields.length; i += 2) {
+                    terms.put(fields[i], ContentFilter.Action.valueOf(fields[i + 1]));
+                }
+                ContentFilter.replace(new ContentFilter.Versioned(terms, Long.parseLong(fields[1]), fields[2]));
+                break;
+            case "ACCOUNT":
+                Authenticator.addFromPeer(fields[1], fields[2], fields[3]);
+                break;
+            case "USER":
+                if (fields[2].equals("muted")) {
+                    UserManager.muteUser(fields[1]);
+                } else if (fields[2].equals("unmuted")) {
+                    UserManager.unmuteUser(fields[1]);
+                } else if (fields[2].equals("admin")) {
+                    UserManager.promoteToAdmin(fields[1]);
+                } else if (fields[2].equals("user")) {
+                    UserManager.demoteToUser(fields[1]);
+                }
+                break;
+            case "SUMMARY":
+                RoomSummaries.restore(fields[1], new RoomSummaries.Summary(fields[4], Integer.parseInt(fields[2]), Long.parseLong(fields[3])));
+                break;
+        }
+    }
+
+    static String encode(String... fields) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                sb.append('\t');
+            }
+            String field = fields[i];
+            for (int j = 0; j < field.length(); j++) {
+                char c = field.charAt(j);
+                if (c == '\\') {
+                    sb.append("\\\\");
+                } else if (c == '\t') {
+                    sb.append("\\t");
+                } else if (c == '\n') {
+                    sb.append("\\n");
+                } else if (c == '\r') {
+                    sb.append("\\r");
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    static String[] decode(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\t') {
+                fields.add(sb.toString());
+                sb.setLength(0);
+            } else if (c == '\\' && i + 1 < line.length()) {
+                char next = line.charAt(++i);
+                sb.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                sb.append(c);
+            }
+        }
+        fields.add(sb.toString());
+        return fields.toArray(new String[0]);
+    }
+
+    // Outgoing link to one peer, with its own send queue so callers never block on the network
+    private static class Peer {
+        private final String id;
+        private final String host;
+        private final int port;
+        private final BlockingQueue<String> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        private volatile boolean connected = false;
+        private boolean refused = false; // logged once until the handshake succeeds again
+
+        Peer(String id, String host, int port) {
+            this.id = id;
+            this.host = host;
+            this.port = port;
+        }
+
+        void send(String message) {
+            if (connected && !queue.offer(message)) {
+                Log.warn("cluster", "Cluster queue to " + id + " is full, dropping message");
+            }
+        }
+
+        // Connecting side of the handshake, true once both ends have proven they know the secret
+        private boolean authenticate(Socket socket, BufferedReader in, BufferedWriter out) throws IOException {
+            String line = in.readLine();
+            String[] challenge = line == null ? new String[0] : decode(line);
+            if (challenge.length != 2 || !challenge[0].equals("CHALLENGE")) {
+                return false;
+            }
+            String ours = nonce();
+            out.write(encode("HELLO", nodeId, ours, proof("HELLO", challenge[1], nodeId, id)) + "\n");
+            out.flush();
+            line = in.readLine();
+            String[] welcome = line == null ? new String[0] : decode(line);
+            socket.setSoTimeout(0);
+            return welcome.length == 2 && welcome[0].equals("WELCOME")
+                && MessageDigest.isEqual(proof("WELCOME", ours, id, nodeId).getBytes(StandardCharsets.UTF_8),
+                    welcome[1].getBytes(StandardCharsets.UTF_8));
+        }
+
+        void run() {
+            while (true) {
+                try (SSLSocket socket = (SSLSocket) peerSockets.createSocket(host, port);
+                     BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                     BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+                    try {
+                        socket.startHandshake();
+                    } catch (IOException e) {
+                        if (!refused) {
+                            Log.warn("cluster", "TLS handshake with cluster peer " + id + " failed, is its certificate in the trust store? " + e.getMessage());
+                            refused = true;
+                        }
+                        throw e;
+                    }
+                    if (!authenticate(socket, in, out)) {
+                        if (!refused) {
+                            Log.warn("cluster", "Cluster peer " + id + " failed the handshake, is chat.cluster.secret the same?");
+                            refused = true;
+                        }
+                        throw new IOException("handshake failed");
+                    }
+                    refused = false;
+                    queue.clear();
+                    connected = true;
+                    // Bring the peer up to date with everything it may have missed
+                    for (String[] state : Server.clusterState()) {
+                        out.write(encode(state) + "\n");
+                    }
+                    for (String room : localRooms) {
+                        out.write(encode("SUB", room) + "\n");
+                    }
+                    out.flush();
+                    rebuildRing();
+
+                    while (true) {
+                        String message = queue.poll(1, TimeUnit.SECONDS);
+                        if (message == null) {
+                            continue;
+                        }
+                        out.write(message);
+                        out.write('\n');
+                        // Batch whatever else is already queued into the same flush
+                        while ((message = queue.poll()) != null) {
+                            out.write(message);
+                            out.write('\n');
+                        }
+                        out.flush();
+                    }
+                } catch (IOException e) {
+                    // Peer not reachable yet, retry below
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (connected) {
+                    connected = false;
+                    rebuildRing();
+                }
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+}
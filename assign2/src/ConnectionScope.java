@@ -0,0 +1,85 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.StructuredTaskScope;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// The lifetime of one client connection as a structured task scope. The handler thread that opens
+// it is the reader; the connection's writer is forked into it, and timers like the heartbeat are
+// owned by it. When any part ends the others follow: a writer that stops closes the socket so the
+// read fails, and closing the scope closes the socket, interrupts the writer and waits for it, so
+// no thread of a connection outlives it. Server removes the connection from its rooms and session
+// state after that and reports anything it still finds as a leak.
+public class ConnectionScope extends StructuredTaskScope<Object> {
+    private static final AtomicInteger live = new AtomicInteger();
+    private static final LongAdder opened = new LongAdder();
+    private static final LongAdder closed = new LongAdder();
+    private static final LongAdder leaks = new LongAdder();
+
+    private final Socket socket;
+    private final List<TimerWheel.Timeout> timers = new ArrayList<>(); // guarded by itself
+
+    public ConnectionScope(Socket socket) {
+        super("connection " + socket.getRemoteSocketAddress(), Thread.ofVirtual().name("connection-writer").factory());
+        this.socket = socket;
+        live.incrementAndGet();
+        opened.increment();
+    }
+
+    // Cancelled when the scope closes
+    public TimerWheel.Timeout own(TimerWheel.Timeout timer) {
+        synchronized (timers) {
+            timers.add(timer);
+        }
+        return timer;
+    }
+
+    @Override
+    protected void handleComplete(Subtask<?> subtask) {
+        if (subtask.state() == Subtask.State.FAILED) {
+            Log.warn("server", "Connection task of " + socket.getInetAddress() + " failed: " + subtask.exception());
+        }
+        closeSocket();
+        shutdown();
+    }
+
+    // Ends whatever is still running and waits for it; the handler's try-with-resources calls it
+    @Override
+    public void close() {
+        closeSocket();
+        shutdown();
+        try {
+            join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        super.close();
+        synchronized (timers) {
+            for (TimerWheel.Timeout timer : timers) {
+                timer.cancel();
+            }
+            timers.clear();
+        }
+        live.decrementAndGet();
+        closed.increment();
+    }
+
+    // Called by Server when state of a closed connection was still around
+    public static void leaked(String what) {
+        leaks.increment();
+        Log.warn("server", "Connection state left behind after close: " + what);
+    }
+
+    public static List<String> summary(int tracked) {
+        return List.of(String.format("- %d connection scopes open, %d tracked connections, %d opened, %d closed, %d leaks",
+            live.get(), tracked, opened.sum(), closed.sum(), leaks.sum()));
+    }
+
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {}
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Blocked terms, checked on every chat line and direct message before it is delivered. A term
+// either masks the matching word with '*' or rejects the whole message. Terms match whole words,
+// case-insensitively.
+//
+// All terms are compiled into one Aho-Corasick automaton, stored as a dense transition table over
+// the characters that occur in the terms, so a message is matched against every term in a single
+// pass with one array lookup per character. Changing the list compiles a new automaton on the
+// admin's thread and swaps it in with one volatile write; lines being filtered at that moment
+// finish on the old one and nothing waits.
+//
+// Every change to the list gets a version, the time of the change and the node it was made on, which
+// is saved with the list and sent along to the other cluster nodes. A node only takes a list newer
+// than its own, so nodes that reconnect with different lists all end up with the latest one.
+public class ContentFilter {
+    public enum Action { MASK, REJECT }
+
+    private static final String TERMS_FILE = "db/blocked_terms.csv";
+
+    public record Result(String text, boolean rejected, int matches) {}
+
+    // The list with the version it was last changed in; the node breaks ties between equal times
+    public record Versioned(Map<String, Action> terms, long version, String node) {}
+
+    private static volatile Automaton automaton = null; // null while no term is configured
+    private static Map<String, Action> terms = new LinkedHashMap<>(); // guarded by the class lock
+    private static long version = 0;
+    private static String versionNode = "";
+
+    private static final class Automaton {
+        final String[] terms;
+        final boolean[] reject;
+        final char[] classes = new char[Character.MAX_VALUE + 1]; // char -> column, 0 for chars in no term
+        final int width;
+        final int[] next;    // state * width + column -> state
+        final int[] termAt;  // term ending at this state, -1 if none
+        final int[] outLink; // closest proper suffix state where a term ends, -1 if none
+
+        Automaton(Map<String, Action> list) {
+            terms = list.keySet().toArray(new String[0]);
+            reject = new boolean[terms.length];
+            int columns = 1;
+            int maxStates = 1;
+            for (int t = 0; t < terms.length; t++) {
+                reject[t] = list.get(terms[t]) == Action.REJECT;
+                maxStates += terms[t].length();
+                for (int i = 0; i < terms[t].length(); i++) {
+                    char c = terms[t].charAt(i);
+                    if (classes[c] == 0) {
+                        classes[c] = (char) columns++;
+                    }
+                }
+            }
+            width = columns;
+
+            // Trie first, 0 meaning no edge (the root is never a child)
+            int[] trie = new int[maxStates * width];
+            int[] ends = new int[maxStates];
+            Arrays.fill(ends, -1);
+            int states = 1;
+            for (int t = 0; t < terms.length; t++) {
+                int state = 0;
+                for (int i = 0; i < terms[t].length(); i++) {
+                    int column = classes[terms[t].charAt(i)];
+                    if (trie[state * width + column] == 0) {
+                        trie[state * width + column] = states++;
+                    }
+                    state = trie[state * width + column];
+                }
+                ends[state] = t;
+            }
+
+            // Breadth-first over the trie, filling every missing edge with the failure state's edge
+            next = Arrays.copyOf(trie, states * width);
+            termAt = Arrays.copyOf(ends, states);
+            outLink = new int[states];
+            int[] fail = new int[states];
+            Arrays.fill(outLink, -1);
+            ArrayDeque<Integer> queue = new ArrayDeque<>();
+            for (int column = 1; column < width; column++) {
+                int child = next[column];
+                if (child != 0) {
+                    queue.add(child);
+                }
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                int f = fail[state];
+                outLink[state] = termAt[f] >= 0 ? f : outLink[f];
+                for (int column = 1; column < width; column++) {
+                    int child = trie[state * width + column];
+                    if (child != 0) {
+                        fail[child] = next[f * width + column];
+                        queue.add(child);
+                        next[state * width + column] = child;
+                    } else {
+                        next[state * width + column] = next[f * width + column];
+                    }
+                }
+            }
+        }
+
+        Result apply(String text) {
+            char[] masked = null;
+            int matches = 0;
+            int state = 0;
+            int length = text.length();
+            for (int i = 0; i < length; i++) {
+                state = next[state * width + classes[Character.toLowerCase(text.charAt(i))]];
+                for (int s = termAt[state] >= 0 ? state : outLink[state]; s >= 0; s = outLink[s]) {
+                    int term = termAt[s];
+                    int start = i - terms[term].length() + 1;
+                    if ((start > 0 && Character.isLetterOrDigit(text.charAt(start - 1)))
+                            || (i + 1 < length && Character.isLetterOrDigit(text.charAt(i + 1)))) {
+                        continue; // Part of a longer word
+                    }
+                    matches++;
+                    if (reject[term]) {
+                        return new Result(text, true, matches);
+                    }
+                    if (masked == null) {
+                        masked = text.toCharArray();
+                    }
+                    Arrays.fill(masked, start, i + 1, '*');
+                }
+            }
+            return new Result(masked == null ? text : new String(masked), false, matches);
+        }
+    }
+
+    // Called on the chat path
+    public static Result apply(String text) {
+        Automaton current = automaton;
+        if (current == null) {
+            return new Result(text, false, 0);
+        }
+        return current.apply(text);
+    }
+
+    public static synchronized void load() {
+        File file = new File(TERMS_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        Map<String, Action> loaded = new LinkedHashMap<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                // Skip header
+                if (line.startsWith("term,action")) {
+                    continue;
+                }
+                if (line.startsWith("#version,")) {
+                    String[] parts = line.split(",", 3);
+                    version = Long.parseLong(parts[1]);
+                    versionNode = parts.length > 2 ? parts[2] : "";
+                    continue;
+                }
+                int comma = line.lastIndexOf(',');
+                if (comma > 0) {
+                    loaded.put(normalize(line.substring(0, comma)), Action.valueOf(line.substring(comma + 1).trim().toUpperCase()));
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Log.error("persistence", "Error loading blocked terms: " + e.getMessage());
+            return;
+        }
+        install(loaded);
+        Log.info("filter", "Loaded " + loaded.size() + " blocked terms");
+    }
+
+    // Adds or changes a term, returns false if it was already blocked with that action
+    public static synchronized boolean block(String term, Action action) {
+        Map<String, Action> changed = new LinkedHashMap<>(terms);
+        if (changed.put(normalize(term), action) == action) {
+            return false;
+        }
+        install(changed);
+        changedHere();
+        save();
+        return true;
+    }
+
+    public static synchronized boolean unblock(String term) {
+        Map<String, Action> changed = new LinkedHashMap<>(terms);
+        if (changed.remove(normalize(term)) == null) {
+            return false;
+        }
+        install(changed);
+        changedHere();
+        save();
+        return true;
+    }
+
+    // Replaces the whole list with one from another cluster node if that one is newer
+    public static synchronized boolean replace(Versioned list) {
+        if (list.version() < version || (list.version() == version && list.node().compareTo(versionNode) <= 0)) {
+            return false;
+        }
+        install(new LinkedHashMap<>(list.terms()));
+        version = list.version();
+        versionNode = list.node();
+        save();
+        return true;
+    }
+
+    public static synchronized Versioned list() {
+        return new Versioned(Collections.unmodifiableMap(terms), version, versionNode);
+    }
+
+    // Installs a list without writing it to disk, used by FilterBenchmark
+    static synchronized void setTerms(Map<String, Action> list) {
+        Map<String, Action> normalized = new LinkedHashMap<>();
+        for (Map.Entry<String, Action> entry : list.entrySet()) {
+            normalized.put(normalize(entry.getKey()), entry.getValue());
+        }
+        install(normalized);
+    }
+
+    public static synchronized Map<String, Action> terms() {
+        return Collections.unmodifiableMap(terms);
+    }
+
+    // Always newer than the current version, even if the clock went back
+    private static void changedHere() {
+        version = Math.max(System.currentTimeMillis(), version + 1);
+        versionNode = Cluster.getNodeId() == null ? "" : Cluster.getNodeId();
+    }
+
+    private static void install(Map<String, Action> list) {
+        list.remove("");
+        Automaton compiled = list.isEmpty() ? null : new Automaton(list);
+        terms = list;
+        automaton = compiled;
+    }
+
+    // Lowercased char by char, like the text is while matching, so positions line up
+    private static String normalize(String term) {
+        char[] chars = term.trim().toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(chars[i]);
+        }
+        return new String(chars);
+    }
+
+    private static void save() {
+        ChatEvents.Persistence event = ChatEvents.Persistence.start("saveBlockedTerms", TERMS_FILE);
+        try {
+            File dir = new File("db");
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(TERMS_FILE, false))) {
+                writer.write("term,action\n");
+                writer.write("#version," + version + "," + versionNode + "\n");
+                for (Map.Entry<String, Action> entry : terms.entrySet()) {
+                    writer.write(entry.getKey() + "," + entry.getValue().name().toLowerCase() + "\n");
+                }
+            }
+            event.records = terms.size();
+            event.success = true;
+        } catch (IOException e) {
+            Log.error("persistence", "Error saving blocked terms: " + e.getMessage());
+        } finally {
+            event.commit();
+        }
+    }
+}
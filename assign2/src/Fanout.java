@@ -0,0 +1,192 @@
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+// Queues a broadcast on every member of a room. Small rooms are walked on the sender's thread, as
+// before. Rooms with at least chat.fanout.parallelThreshold members are split into shards, one per
+// fan-out worker, and the workers queue the frame on their shard's members in parallel, so the
+// sender only pays for sorting the members into shards.
+//
+// A member always lands in the shard of its connection id and every shard has a single worker, so
+// each member receives a room's lines in the order they were sent. A room keeps going through the
+// workers while any of its fan-outs are still in flight, so a room shrinking below the threshold
+// cannot overtake its own earlier lines. Lines of different rooms are not ordered with each other.
+//
+// Each worker queues at most chat.fanout.queue shards. A shard that finds its worker's queue full
+// is dropped, like a line that finds a member's chat lane full, so a burst in a huge room cannot
+// grow the heap without limit; the dropped deliveries are counted.
+//
+// The time from the send until the last shard is done is recorded per message, shown in /stats and
+// as the chat.Fanout JFR event for parallel fan-outs, together with how many members it reached.
+public class Fanout {
+    private static final int PARALLEL_THRESHOLD = Integer.getInteger("chat.fanout.parallelThreshold", 2000);
+    private static final int WORKERS = Integer.getInteger("chat.fanout.threads", Math.max(2, Runtime.getRuntime().availableProcessors()));
+    private static final int QUEUE = Integer.getInteger("chat.fanout.queue", 256);
+
+    private static final ThreadPoolExecutor[] workers = new ThreadPoolExecutor[WORKERS];
+
+    private static final Stats sequential = new Stats();
+    private static final Stats parallel = new Stats();
+    private static final AtomicInteger largest = new AtomicInteger();
+    // Members a parallel fan-out reached, or missed because their lane or the worker's queue was full
+    private static final LongAdder delivered = new LongAdder();
+    private static final LongAdder notDelivered = new LongAdder();
+    private static final LongAdder shardsDropped = new LongAdder();
+    // Announcements are ordered among themselves like the lines of one room
+    private static final AtomicInteger announcementsInFlight = new AtomicInteger();
+
+    private static final class Stats {
+        final LongAdder count = new LongAdder();
+        final LongAdder totalMicros = new LongAdder();
+        final AtomicLong maxMicros = new AtomicLong();
+
+        void record(long nanos) {
+            long micros = nanos / 1000;
+            count.increment();
+            totalMicros.add(micros);
+            maxMicros.accumulateAndGet(micros, Math::max);
+        }
+
+        String format(String name) {
+            long n = count.sum();
+            return String.format("- %s: %d messages, mean %d us, max %d us until queued for every member",
+                name, n, n == 0 ? 0 : totalMicros.sum() / n, maxMicros.get());
+        }
+    }
+
+    static {
+        for (int i = 0; i < WORKERS; i++) {
+            String name = "fanout-" + i;
+            workers[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE), r -> {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    // Returns how many members the frame was queued for on the calling thread; in a large room that
+    // happens on the workers, which count it in the chat.Fanout event and /stats, and this returns 0.
+    // Must be called with chatRoomsLock held, the room is only read before returning
+    public static int toRoom(String roomName, RoomMembers room, Frame frame, Socket except, ClientConnection.Lane lane) {
+        return send(roomName, room.size(), room::connection, room.fanoutsInFlight(), frame, except, lane);
+    }
+
+    // Announcements, to every logged in connection once
+    public static int toAll(List<ClientConnection> connections, Frame frame, ClientConnection.Lane lane) {
+        return send("(announcement)", connections.size(), connections::get, announcementsInFlight, frame, null, lane);
+    }
+
+    private static int send(String roomName, int size, IntFunction<ClientConnection> member, AtomicInteger inFlight,
+            Frame frame, Socket except, ClientConnection.Lane lane) {
+        long start = System.nanoTime();
+        if (size < PARALLEL_THRESHOLD && inFlight.get() == 0) {
+            int recipients = 0;
+            for (int i = 0; i < size; i++) {
+                ClientConnection connection = member.apply(i);
+                if (connection.getSocket() == except) {
+                    continue;
+                }
+                if (connection.send(frame, lane)) {
+                    recipients++;
+                }
+            }
+            sequential.record(System.nanoTime() - start);
+            return recipients;
+        }
+
+        ClientConnection[][] shards = new ClientConnection[WORKERS][size / WORKERS + 16];
+        int[] counts = new int[WORKERS];
+        int members = 0;
+        for (int i = 0; i < size; i++) {
+            ClientConnection connection = member.apply(i);
+            if (connection.getSocket() == except) {
+                continue;
+            }
+            int shard = Math.floorMod(connection.getId(), WORKERS);
+            if (counts[shard] == shards[shard].length) {
+                shards[shard] = Arrays.copyOf(shards[shard], counts[shard] * 2);
+            }
+            shards[shard][counts[shard]++] = connection;
+            members++;
+        }
+
+        int used = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                used++;
+            }
+        }
+        if (used == 0) {
+            return 0;
+        }
+        ChatEvents.Fanout event = new ChatEvents.Fanout();
+        event.begin();
+        event.room = roomName;
+        event.members = members;
+        event.shards = used;
+        largest.accumulateAndGet(members, Math::max);
+        AtomicInteger remaining = new AtomicInteger(used);
+        AtomicInteger reached = new AtomicInteger();
+        int total = members;
+        inFlight.incrementAndGet();
+        for (int shard = 0; shard < WORKERS; shard++) {
+            if (counts[shard] == 0) {
+                continue;
+            }
+            ClientConnection[] shardMembers = shards[shard];
+            int count = counts[shard];
+            Runnable done = () -> {
+                frame.release();
+                if (remaining.decrementAndGet() == 0) {
+                    inFlight.decrementAndGet();
+                    parallel.record(System.nanoTime() - start);
+                    event.delivered = reached.get();
+                    delivered.add(reached.get());
+                    notDelivered.add(total - reached.get());
+                    event.commit();
+                }
+            };
+            frame.retain();
+            try {
+                workers[shard].execute(() -> {
+                    try {
+                        int sent = 0;
+                        for (int i = 0; i < count; i++) {
+                            if (shardMembers[i].send(frame, lane)) {
+                                sent++;
+                            }
+                        }
+                        reached.addAndGet(sent);
+                    } finally {
+                        done.run();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                shardsDropped.increment();
+                done.run();
+            }
+        }
+        return 0;
+    }
+
+    public static List<String> summary() {
+        List<String> lines = new ArrayList<>();
+        lines.add(sequential.format("sequential"));
+        lines.add(parallel.format("parallel"));
+        lines.add("- " + WORKERS + " workers, rooms from " + PARALLEL_THRESHOLD + " members go parallel, largest fan-out "
+            + largest.get() + " members");
+        lines.add("- parallel fan-outs reached " + delivered.sum() + " members and missed " + notDelivered.sum()
+            + " (" + shardsDropped.sum() + " shards dropped with the worker queue full, " + QUEUE + " per worker)");
+        return lines;
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+// Throughput of the blocked term filter against the naive check it replaces (lowercase the line,
+// then one contains() per term), on generated chat lines with a fixed seed so runs compare.
+//
+// Usage: java FilterBenchmark [terms, default 1000] [messages, default 200000] [rounds, default 5]
+public class FilterBenchmark {
+
+    public static void main(String[] args) {
+        int termCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int messageCount = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        Random random = new Random(42);
+        List<String> vocabulary = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            vocabulary.add(word(random));
+        }
+        Map<String, ContentFilter.Action> terms = new LinkedHashMap<>();
+        while (terms.size() < termCount) {
+            terms.put(word(random), random.nextInt(10) == 0 ? ContentFilter.Action.REJECT : ContentFilter.Action.MASK);
+        }
+        List<String> termList = new ArrayList<>(terms.keySet());
+        // Lines of 4 to 24 words, about one in fifty holding a blocked term
+        String[] messages = new String[messageCount];
+        long chars = 0;
+        for (int i = 0; i < messageCount; i++) {
+            StringBuilder line = new StringBuilder();
+            int words = 4 + random.nextInt(21);
+            for (int w = 0; w < words; w++) {
+                if (w > 0) {
+                    line.append(' ');
+                }
+                line.append(random.nextInt(50 * words) == 0 ? termList.get(random.nextInt(termList.size())) : vocabulary.get(random.nextInt(vocabulary.size())));
+            }
+            messages[i] = line.toString();
+            chars += line.length();
+        }
+
+        long start = System.nanoTime();
+        ContentFilter.setTerms(terms);
+        System.out.printf("%d terms compiled in %.2f ms, %d messages, %.1f MB of text%n",
+            termCount, (System.nanoTime() - start) / 1e6, messageCount, chars * 2 / 1e6);
+
+        for (int round = 1; round <= rounds; round++) {
+            long automatonNanos = time(() -> {
+                int hits = 0;
+                for (String message : messages) {
+                    hits += ContentFilter.apply(message).matches();
+                }
+                return hits;
+            });
+            long naiveNanos = time(() -> {
+                int hits = 0;
+                for (String message : messages) {
+                    String lower = message.toLowerCase(Locale.ROOT);
+                    for (String term : termList) {
+                        if (lower.contains(term)) {
+                            hits++;
+                        }
+                    }
+                }
+                return hits;
+            });
+            System.out.printf("round %d  automaton %10.0f msg/s %8.1f MB/s   naive contains %10.0f msg/s %8.1f MB/s   speedup %.1fx%n",
+                round, messageCount / (automatonNanos / 1e9), chars * 2 / 1e6 / (automatonNanos / 1e9),
+                messageCount / (naiveNanos / 1e9), chars * 2 / 1e6 / (naiveNanos / 1e9), (double) naiveNanos / automatonNanos);
+        }
+    }
+
+    private static long time(java.util.function.IntSupplier work) {
+        long start = System.nanoTime();
+        int hits = work.getAsInt();
+        long elapsed = System.nanoTime() - start;
+        if (hits < 0) {
+            System.out.println(hits); // Keeps the loop from being optimized away
+        }
+        return elapsed;
+    }
+
+    private static String word(Random random) {
+        char[] chars = new char[3 + random.nextInt(7)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+}
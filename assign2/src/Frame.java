@@ -0,0 +1,110 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One encoded protocol line ("text\n" in UTF-8). A broadcast encodes the line once and every
+// recipient writes the same bytes. The buffer comes from a pool and goes back to it when the
+// last holder calls release().
+public class Frame {
+    // Buffer size classes, frames larger than the last class are not pooled
+    private static final int[] SIZE_CLASSES = {256, 1024, 4096, 16384};
+    private static final int MAX_POOLED_PER_CLASS = 1024;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final Queue<byte[]>[] pools = new Queue[SIZE_CLASSES.length];
+    private static final AtomicInteger[] pooledCounts = new AtomicInteger[SIZE_CLASSES.length];
+
+    static {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            pools[i] = new ConcurrentLinkedQueue<>();
+            pooledCounts[i] = new AtomicInteger();
+        }
+    }
+
+    private final byte[] buffer;
+    private final int length;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    private Frame(byte[] buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    // The returned frame is owned by the caller, who must release() it once
+    public static Frame of(String line) {
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        // UTF-8 needs at most 3 bytes per UTF-16 char, plus the line terminator
+        int maxLength = line.length() * 3 + 1;
+        byte[] buffer = acquire(maxLength);
+        ByteBuffer out = ByteBuffer.wrap(buffer);
+        CoderResult result = encoder.encode(CharBuffer.wrap(line), out, true);
+        if (result.isError() || result.isOverflow()) {
+            // Cannot happen with the size bound above, but never send a truncated line
+            recycle(buffer);
+            byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            return new Frame(bytes, bytes.length);
+        }
+        encoder.flush(out);
+        out.put((byte) '\n');
+        return new Frame(buffer, out.position());
+    }
+
+    public Frame retain() {
+        refCount.incrementAndGet();
+        return this;
+    }
+
+    public void release() {
+        int remaining = refCount.decrementAndGet();
+        if (remaining == 0) {
+            recycle(buffer);
+        } else if (remaining < 0) {
+            throw new IllegalStateException("Frame released too many times");
+        }
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, length);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    private static byte[] acquire(int size) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (size <= SIZE_CLASSES[i]) {
+                byte[] buffer = pools[i].poll();
+                if (buffer != null) {
+                    pooledCounts[i].decrementAndGet();
+                    return buffer;
+                }
+                return new byte[SIZE_CLASSES[i]];
+            }
+        }
+        return new byte[size];
+    }
+
+    private static void recycle(byte[] buffer) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (buffer.length == SIZE_CLASSES[i]) {
+                if (pooledCounts[i].incrementAndGet() <= MAX_POOLED_PER_CLASS) {
+                    pools[i].offer(buffer);
+                } else {
+                    pooledCounts[i].decrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class HashRing {
+    private static final int VIRTUAL_NODES = 64;
+
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+
+    HashRing(Collection<String> nodeIds) {
+        for (String nodeId : nodeIds) {
+            // Several points per node so rooms spread evenly even with few nodes
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(nodeId + "#" + i), nodeId);
+            }
+        }
+    }
+
+    public String nodeFor(String key) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        if (entry == null) {
+            entry = ring.firstEntry();
+        }
+        return entry.getValue();
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for (int i = 0; i < 8; i++) {
+                h = (h << 8) | (digest[i] & 0xff);
+            }
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            return key.hashCode();
+        }
+    }
+}
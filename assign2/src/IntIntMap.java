@@ -0,0 +1,137 @@
+import java.util.Arrays;
+
+// Open-addressing hash map from non-negative int keys to int values, stored in two flat arrays
+// with linear probing, so there is no boxing and no entry object per mapping. Not thread-safe,
+// callers guard it with their own lock.
+public class IntIntMap {
+    private static final int FREE = -1;
+
+    public interface Visitor {
+        void visit(int key, int value);
+    }
+
+    private int[] keys;
+    private int[] values;
+    private int size = 0;
+
+    public IntIntMap() {
+        this(16);
+    }
+
+    public IntIntMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, FREE);
+    }
+
+    public int get(int key, int missing) {
+        if (key < 0) {
+            return missing;
+        }
+        int mask = keys.length - 1;
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return values[i];
+            }
+            if (keys[i] == FREE) {
+                return missing;
+            }
+        }
+    }
+
+    public boolean containsKey(int key) {
+        if (key < 0) {
+            return false;
+        }
+        int mask = keys.length - 1;
+        for (int i = mix(key) & mask; ; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return true;
+            }
+            if (keys[i] == FREE) {
+                return false;
+            }
+        }
+    }
+
+    public void put(int key, int value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Negative key: " + key);
+        }
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (keys[i] != FREE) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size * 2 > keys.length) {
+            resize(keys.length * 2);
+        }
+    }
+
+    // Returns the removed value, or missing if the key was not there
+    public int remove(int key, int missing) {
+        if (key < 0) {
+            return missing;
+        }
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (keys[i] != key) {
+            if (keys[i] == FREE) {
+                return missing;
+            }
+            i = (i + 1) & mask;
+        }
+        int removed = values[i];
+        // Shift later entries of the same probe run back so lookups never stop at the gap
+        int gap = i;
+        for (int j = (gap + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+            int home = mix(keys[j]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = FREE;
+        size--;
+        return removed;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) {
+                visitor.visit(keys[i], values[i]);
+            }
+        }
+    }
+
+    private void resize(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, FREE);
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,145 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordedStackTrace;
+import jdk.jfr.consumer.RecordingFile;
+
+// Offline summary of a recording made with chat.jfc: latency per chat event type and per room or
+// operation, the slowest events, and where threads waited on locks, sockets and files.
+//
+// Usage: java JfrSummary <recording.jfr> [slowest events to list, default 10]
+public class JfrSummary {
+
+    // Durations of one group of events
+    private static class Stats {
+        private final List<Long> nanos = new ArrayList<>();
+        private long failures = 0;
+        private long extra = 0; // lock wait for messages
+
+        void add(long duration) {
+            nanos.add(duration);
+        }
+
+        String format() {
+            nanos.sort(null);
+            long total = 0;
+            for (long n : nanos) {
+                total += n;
+            }
+            StringBuilder sb = new StringBuilder(String.format("%7d events  mean %9s  p50 %9s  p99 %9s  max %9s  total %9s",
+                nanos.size(), ms(total / Math.max(1, nanos.size())), ms(percentile(0.50)), ms(percentile(0.99)),
+                ms(nanos.isEmpty() ? 0 : nanos.get(nanos.size() - 1)), ms(total)));
+            if (failures > 0) {
+                sb.append("  failed ").append(failures);
+            }
+            if (extra > 0) {
+                sb.append("  lock wait ").append(ms(extra));
+            }
+            return sb.toString();
+        }
+
+        private long percentile(double fraction) {
+            if (nanos.isEmpty()) {
+                return 0;
+            }
+            return nanos.get(Math.min(nanos.size() - 1, (int) Math.ceil(nanos.size() * fraction) - 1));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: java JfrSummary <recording.jfr> [slowest events to list]");
+            return;
+        }
+        int top = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        Map<String, Stats> byType = new TreeMap<>();
+        Map<String, Stats> byGroup = new TreeMap<>();
+        Map<String, Stats> waits = new TreeMap<>();
+        PriorityQueue<RecordedEvent> slowest = new PriorityQueue<>(Comparator.comparing((RecordedEvent e) -> e.getDuration()));
+
+        try (RecordingFile recording = new RecordingFile(Path.of(args[0]))) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                String type = event.getEventType().getName();
+                long duration = event.getDuration().toNanos();
+
+                if (type.startsWith("chat.")) {
+                    byType.computeIfAbsent(type, k -> new Stats()).add(duration);
+                    Stats group = byGroup.computeIfAbsent(type + " " + groupOf(event, type), k -> new Stats());
+                    group.add(duration);
+                    if (event.hasField("success") && !event.getBoolean("success")) {
+                        group.failures++;
+                    }
+                    if (type.equals("chat.Message")) {
+                        group.extra += event.getDuration("lockWait").toNanos();
+                    }
+                    slowest.add(event);
+                    if (slowest.size() > top) {
+                        slowest.poll();
+                    }
+                } else if (type.equals("jdk.ThreadPark") || type.equals("jdk.JavaMonitorEnter")
+                        || type.equals("jdk.SocketWrite") || type.equals("jdk.FileWrite")
+                        || type.equals("jdk.VirtualThreadPinned")) {
+                    waits.computeIfAbsent(type + " at " + chatFrame(event.getStackTrace()), k -> new Stats()).add(duration);
+                }
+            }
+        }
+
+        System.out.println("=== Chat events ===");
+        byType.forEach((type, stats) -> System.out.printf("%-20s %s%n", type, stats.format()));
+
+        System.out.println("\n=== By room / operation ===");
+        byGroup.forEach((group, stats) -> System.out.printf("%-40s %s%n", group, stats.format()));
+
+        System.out.println("\n=== Slowest " + slowest.size() + " chat events ===");
+        List<RecordedEvent> sorted = new ArrayList<>(slowest);
+        sorted.sort(Comparator.comparing((RecordedEvent e) -> e.getDuration()).reversed());
+        for (RecordedEvent event : sorted) {
+            System.out.printf("%s  %9s  %-18s %s%n", event.getStartTime(), ms(event.getDuration().toNanos()),
+                event.getEventType().getName(), groupOf(event, event.getEventType().getName()));
+        }
+
+        System.out.println("\n=== Waits (locks, pinning, socket and file writes) by calling chat code ===");
+        waits.entrySet().stream()
+            .sorted(Comparator.comparingLong((Map.Entry<String, Stats> e) -> e.getValue().nanos.stream().mapToLong(Long::longValue).sum()).reversed())
+            .limit(20)
+            .forEach(e -> System.out.printf("%-70s %s%n", e.getKey(), e.getValue().format()));
+    }
+
+    private static String groupOf(RecordedEvent event, String type) {
+        return switch (type) {
+            case "chat.Message", "chat.AiBatch", "chat.Fanout" -> "room=" + event.getString("room");
+            case "chat.Persistence" -> "op=" + event.getString("operation");
+            case "chat.LlmCall" -> "model=" + event.getString("model");
+            case "chat.TlsHandshake" -> "protocol=" + event.getString("protocol");
+            default -> "";
+        };
+    }
+
+    // First frame outside the JDK, which is where the server code was waiting
+    private static String chatFrame(RecordedStackTrace stackTrace) {
+        if (stackTrace == null) {
+            return "(no stack trace)";
+        }
+        for (RecordedFrame frame : stackTrace.getFrames()) {
+            String className = frame.getMethod().getType().getName();
+            if (!className.startsWith("java.") && !className.startsWith("jdk.") && !className.startsWith("sun.")
+                    && !className.startsWith("javax.") && !className.startsWith("com.sun.")) {
+                return className + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+            }
+        }
+        return "(JDK internal)";
+    }
+
+    private static String ms(long nanos) {
+        return String.format("%.3f ms", nanos / 1_000_000.0);
+    }
+}
@@ -0,0 +1,94 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Queue-to-socket latency per delivery lane, kept as a log2 histogram of microseconds so
+// recording is a couple of atomic increments and percentiles can still be estimated.
+public class LaneMetrics {
+    private static final int BUCKETS = 40;
+
+    private static final LongAdder[] counts = new LongAdder[ClientConnection.Lane.values().length];
+    private static final LongAdder[] totalMicros = new LongAdder[counts.length];
+    private static final AtomicLong[] maxMicros = new AtomicLong[counts.length];
+    private static final AtomicLongArray[] histograms = new AtomicLongArray[counts.length];
+    private static final LongAdder[] dropped = new LongAdder[counts.length];
+
+    static {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+            totalMicros[i] = new LongAdder();
+            maxMicros[i] = new AtomicLong();
+            histograms[i] = new AtomicLongArray(BUCKETS);
+            dropped[i] = new LongAdder();
+        }
+    }
+
+    public static void record(ClientConnection.Lane lane, long nanos) {
+        int i = lane.ordinal();
+        long micros = nanos / 1000;
+        counts[i].increment();
+        totalMicros[i].add(micros);
+        maxMicros[i].accumulateAndGet(micros, Math::max);
+        histograms[i].incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+    }
+
+    public static void dropped(ClientConnection.Lane lane) {
+        dropped[lane.ordinal()].increment();
+    }
+
+    // Deliveries per bucket so far, to be compared with a later call
+    public static long[] histogram(ClientConnection.Lane lane) {
+        long[] buckets = new long[BUCKETS];
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            buckets[bucket] = histograms[lane.ordinal()].get(bucket);
+        }
+        return buckets;
+    }
+
+    // Lower bound of the bucket holding the median of the deliveries between two histograms, 0 if
+    // there were none
+    public static long medianMicros(long[] before, long[] after) {
+        long total = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            total += after[bucket] - before[bucket];
+        }
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS && total > 0; bucket++) {
+            seen += after[bucket] - before[bucket];
+            if (seen * 2 >= total) {
+                return bucket == 0 ? 0 : 1L << (bucket - 1);
+            }
+        }
+        return 0;
+    }
+
+    public static List<String> summary() {
+        List<String> lines = new ArrayList<>();
+        for (ClientConnection.Lane lane : ClientConnection.Lane.values()) {
+            int i = lane.ordinal();
+            long count = counts[i].sum();
+            long mean = count == 0 ? 0 : totalMicros[i].sum() / count;
+            lines.add(String.format("- %s: %d delivered, mean %d us, p99 <= %d us, max %d us, %d dropped",
+                lane.name().toLowerCase(), count, mean, percentile(i, count, 0.99), maxMicros[i].get(), dropped[i].sum()));
+        }
+        return lines;
+    }
+
+    // Upper bound of the histogram bucket holding the given percentile
+    private static long percentile(int lane, long count, double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += histograms[lane].get(bucket);
+            if (seen >= target) {
+                return bucket == 0 ? 0 : 1L << bucket;
+            }
+        }
+        return maxMicros[lane].get();
+    }
+}
@@ -0,0 +1,220 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Stand-in for Ollama's /api/generate so the AI room pipeline can be run and benchmarked without a
+// real model. It answers in both the streaming (one JSON object per line, one per token) and the
+// non-streaming format. Every request draws its time to first token, its length, and whether it
+// fails or hangs from a random generator seeded with chat.sim.seed and the request number, so a
+// run with the same settings and the same request order behaves the same way.
+//
+//   -Dchat.sim.port=11434
+//   -Dchat.sim.latency=lognormal:800:0.5     time to first token: fixed:<ms>, uniform:<min>:<max>,
+//                                            exponential:<mean>, lognormal:<median>:<sigma>
+//   -Dchat.sim.models=llama3=lognormal:3000:0.6,llama3.2:1b=fixed:300   per-model latency
+//   -Dchat.sim.tokensPerSecond=20  -Dchat.sim.tokens=30       generation speed and reply length
+//   -Dchat.sim.concurrency=1       requests each model works on at once, the rest wait in line
+//   -Dchat.sim.errorRate=0.01      share of requests answered with HTTP 500
+//   -Dchat.sim.hangRate=0.001      share of requests that never answer
+//   -Dchat.sim.seed=42
+//
+// Usage: java --enable-preview App llm-sim
+public class LlmSimulator {
+    private static final Pattern MODEL = Pattern.compile("\"model\"\\s*:\\s*\"([^\"]*)\"");
+    private static final Pattern STREAM = Pattern.compile("\"stream\"\\s*:\\s*(true|false)");
+    private static final String[] WORDS = {"sure", "the", "room", "chat", "idea", "good", "that", "message", "people",
+        "think", "about", "really", "maybe", "agree", "question", "answer", "today", "nice", "well", "so"};
+
+    private static final int PORT = Integer.getInteger("chat.sim.port", 11434);
+    private static final String DEFAULT_LATENCY = System.getProperty("chat.sim.latency", "lognormal:800:0.5");
+    private static final double TOKENS_PER_SECOND = Double.parseDouble(System.getProperty("chat.sim.tokensPerSecond", "20"));
+    private static final int TOKENS = Integer.getInteger("chat.sim.tokens", 30);
+    private static final int CONCURRENCY = Integer.getInteger("chat.sim.concurrency", 1);
+    private static final double ERROR_RATE = Double.parseDouble(System.getProperty("chat.sim.errorRate", "0"));
+    private static final double HANG_RATE = Double.parseDouble(System.getProperty("chat.sim.hangRate", "0"));
+    private static final long SEED = Long.getLong("chat.sim.seed", 42);
+    private static final int REPORT_SECONDS = Integer.getInteger("chat.sim.reportSeconds", 10);
+
+    private static final Map<String, String> modelLatencies = new ConcurrentHashMap<>();
+    private static final Map<String, Semaphore> runners = new ConcurrentHashMap<>();
+    private static final AtomicLong requestCounter = new AtomicLong();
+
+    // Completed request times in a log2 histogram of milliseconds, for the periodic report
+    private static final AtomicLongArray histogram = new AtomicLongArray(32);
+    private static final AtomicLong completed = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+    private static final AtomicLong hung = new AtomicLong();
+
+    public static void main(String[] args) throws IOException {
+        for (String entry : System.getProperty("chat.sim.models", "").split(",")) {
+            int separator = entry.indexOf('=');
+            if (separator > 0) {
+                modelLatencies.put(entry.substring(0, separator), entry.substring(separator + 1));
+            }
+        }
+        sampleLatency(DEFAULT_LATENCY, new SplittableRandom(SEED)); // fail fast on a bad spec
+        modelLatencies.values().forEach(spec -> sampleLatency(spec, new SplittableRandom(SEED)));
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+        server.createContext("/api/generate", LlmSimulator::generate);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+        System.out.println("LLM simulator listening on port " + PORT + ": latency " + DEFAULT_LATENCY + " " + modelLatencies
+            + ", " + TOKENS + " tokens at " + TOKENS_PER_SECOND + "/s, concurrency " + CONCURRENCY
+            + ", errors " + ERROR_RATE + ", hangs " + HANG_RATE + ", seed " + SEED);
+
+        Thread.startVirtualThread(LlmSimulator::reportLoop);
+    }
+
+    private static void generate(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        long requestNumber = requestCounter.getAndIncrement();
+        SplittableRandom random = new SplittableRandom(mix(SEED * 31 + requestNumber));
+
+        String request = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        Matcher modelMatcher = MODEL.matcher(request);
+        String model = modelMatcher.find() ? modelMatcher.group(1) : "unknown";
+        Matcher streamMatcher = STREAM.matcher(request);
+        // Ollama streams unless told otherwise
+        boolean stream = !streamMatcher.find() || streamMatcher.group(1).equals("true");
+
+        long firstTokenMillis = sampleLatency(modelLatencies.getOrDefault(model, DEFAULT_LATENCY), random);
+        double roll = random.nextDouble();
+        int tokens = Math.max(1, (int) (TOKENS * (0.5 + random.nextDouble())));
+        String[] reply = new String[tokens];
+        for (int i = 0; i < tokens; i++) {
+            reply[i] = (i == 0 ? "" : " ") + WORDS[random.nextInt(WORDS.length)];
+        }
+
+        Semaphore runner = runners.computeIfAbsent(model, k -> new Semaphore(CONCURRENCY, true));
+        try {
+            if (roll < HANG_RATE) {
+                // Never answers, only the client's read timeout ends the request
+                hung.incrementAndGet();
+                Thread.sleep(Long.MAX_VALUE);
+            }
+            runner.acquire();
+            try {
+                Thread.sleep(firstTokenMillis);
+                if (roll < HANG_RATE + ERROR_RATE) {
+                    failed.incrementAndGet();
+                    send(exchange, 500, "{\"error\":\"simulated failure\"}");
+                    return;
+                }
+                if (stream) {
+                    streamReply(exchange, model, reply, start);
+                } else {
+                    Thread.sleep(generationMillis(tokens));
+                    send(exchange, 200, "{\"model\":\"" + model + "\",\"created_at\":\"" + Instant.now()
+                        + "\",\"response\":\"" + String.join("", reply) + "\",\"done\":true,\"total_duration\":"
+                        + (System.nanoTime() - start) + ",\"eval_count\":" + tokens + "}");
+                }
+            } finally {
+                runner.release();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (IOException e) {
+            // The client went away, for example after its read timeout
+            failed.incrementAndGet();
+            return;
+        } finally {
+            exchange.close();
+        }
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        histogram.incrementAndGet(Math.min(31, 64 - Long.numberOfLeadingZeros(millis)));
+        completed.incrementAndGet();
+    }
+
+    private static void streamReply(HttpExchange exchange, String model, String[] reply, long start)
+            throws IOException, InterruptedException {
+        exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream out = exchange.getResponseBody();
+        long perToken = generationMillis(1);
+        for (String token : reply) {
+            out.write(("{\"model\":\"" + model + "\",\"created_at\":\"" + Instant.now() + "\",\"response\":\""
+                + token + "\",\"done\":false}\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            Thread.sleep(perToken);
+        }
+        out.write(("{\"model\":\"" + model + "\",\"created_at\":\"" + Instant.now() + "\",\"response\":\"\",\"done\":true,"
+            + "\"total_duration\":" + (System.nanoTime() - start) + ",\"eval_count\":" + reply.length + "}\n")
+            .getBytes(StandardCharsets.UTF_8));
+        out.close();
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static long generationMillis(int tokens) {
+        return TOKENS_PER_SECOND <= 0 ? 0 : (long) (tokens * 1000 / TOKENS_PER_SECOND);
+    }
+
+    private static long sampleLatency(String spec, SplittableRandom random) {
+        String[] parts = spec.split(":");
+        double[] values = Arrays.stream(parts, 1, parts.length).mapToDouble(Double::parseDouble).toArray();
+        double millis = switch (parts[0]) {
+            case "fixed" -> values[0];
+            case "uniform" -> values[0] + random.nextDouble() * (values[1] - values[0]);
+            case "exponential" -> -values[0] * Math.log(1 - random.nextDouble());
+            case "lognormal" -> values[0] * Math.exp(values[1] * random.nextGaussian());
+            default -> throw new IllegalArgumentException("Unknown latency distribution: " + spec);
+        };
+        return Math.max(0, Math.round(millis));
+    }
+
+    // Spreads consecutive request numbers over unrelated seeds
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static void reportLoop() {
+        while (true) {
+            try {
+                Thread.sleep(REPORT_SECONDS * 1000L);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long count = completed.get();
+            System.out.println(Instant.now() + " requests " + requestCounter.get() + ", completed " + count
+                + ", failed " + failed.get() + ", hung " + hung.get() + ", p50 <= " + percentile(count, 0.50)
+                + " ms, p99 <= " + percentile(count, 0.99) + " ms");
+        }
+    }
+
+    private static long percentile(long count, double fraction) {
+        long target = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int bucket = 0; bucket < 32; bucket++) {
+            seen += histogram.get(bucket);
+            if (seen >= target && seen > 0) {
+                return 1L << bucket;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+// Server log. Callers only claim a slot in a lock-free ring buffer; formatting and the actual
+// write to stdout happen on one background thread, so logging never blocks on the stdout lock.
+// When the buffer is full new records are dropped and counted instead of blocking the caller.
+public class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR }
+
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+
+    private static final Level MIN_LEVEL = Level.valueOf(System.getProperty("chat.log.level", "INFO").toUpperCase());
+    // Log one in every N chat lines, 0 disables chat content logging
+    private static final int CHAT_SAMPLE = Integer.getInteger("chat.log.chatSample", 1);
+
+    private static final Record[] slots = new Record[CAPACITY];
+    // Vyukov-style sequence numbers: a slot is free for position p when its sequence equals p,
+    // and holds a published record for position p when it equals p + 1
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head = 0; // only touched by the writer thread
+
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong chatCounter = new AtomicLong();
+    private static volatile boolean running = true;
+    private static final Thread writer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        writer = new Thread(Log::drainLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private record Record(long timeMillis, Level level, String category, String message, Throwable error) {}
+
+    public static void debug(String category, String message) {
+        log(Level.DEBUG, category, message, null);
+    }
+
+    public static void info(String category, String message) {
+        log(Level.INFO, category, message, null);
+    }
+
+    public static void warn(String category, String message) {
+        log(Level.WARN, category, message, null);
+    }
+
+    public static void error(String category, String message) {
+        log(Level.ERROR, category, message, null);
+    }
+
+    public static void error(String category, String message, Throwable error) {
+        log(Level.ERROR, category, message, error);
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(MIN_LEVEL) >= 0;
+    }
+
+    // Chat content is sampled before the line is even built
+    public static void chat(String room, String username, String text) {
+        if (CHAT_SAMPLE <= 0 || !isEnabled(Level.INFO)) {
+            return;
+        }
+        if (CHAT_SAMPLE > 1 && chatCounter.getAndIncrement() % CHAT_SAMPLE != 0) {
+            return;
+        }
+        log(Level.INFO, "chat", room + "/" + username + ": " + text, null);
+    }
+
+    public static long droppedCount() {
+        return dropped.get();
+    }
+
+    // Writes out everything still buffered, used on shutdown
+    public static void shutdown() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void log(Level level, String category, String message, Throwable error) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        Record record = new Record(System.currentTimeMillis(), level, category, message, error);
+        while (true) {
+            long position = tail.get();
+            int index = (int) (position & MASK);
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index] = record;
+                    sequences.set(index, position + 1);
+                    return;
+                }
+            } else if (difference < 0) {
+                // Buffer full, the writer is behind
+                dropped.incrementAndGet();
+                return;
+            }
+        }
+    }
+
+    private static void drainLoop() {
+        PrintStream out = System.out;
+        StringBuilder batch = new StringBuilder(8192);
+        long reportedDrops = 0;
+        while (true) {
+            int drained = 0;
+            while (drained < 1024) {
+                int index = (int) (head & MASK);
+                if (sequences.get(index) != head + 1) {
+                    break;
+                }
+                Record record = slots[index];
+                slots[index] = null;
+                sequences.set(index, head + CAPACITY);
+                head++;
+                format(record, batch);
+                drained++;
+            }
+            long drops = dropped.get();
+            if (drops != reportedDrops) {
+                batch.append(Instant.now()).append(" WARN  [log] ").append(drops - reportedDrops).append(" log records dropped\n");
+                reportedDrops = drops;
+            }
+            if (batch.length() > 0) {
+                out.print(batch);
+                out.flush();
+                batch.setLength(0);
+            }
+            if (drained == 0) {
+                if (!running) {
+                    return;
+                }
+                LockSupport.parkNanos(2_000_000);
+            }
+        }
+    }
+
+    private static void format(Record record, StringBuilder sb) {
+        sb.append(Instant.ofEpochMilli(record.timeMillis())).append(' ')
+          .append(String.format("%-5s", record.level())).append(" [")
+          .append(record.category()).append("] ")
+          .append(record.message()).append('\n');
+        if (record.error() != null) {
+            StringWriter trace = new StringWriter();
+            record.error().printStackTrace(new PrintWriter(trace));
+            sb.append(trace);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.Predicate;
+
+// Direct messages waiting for users who are offline. Each user has an append-only file under
+// db/mailbox holding length-prefixed records, so storing a message is one append, forced to disk
+// before the sender is told it was kept, and the messages themselves stay on disk until the user
+// comes back. In memory there is only the index of how many messages each user has waiting, which
+// is rebuilt from the file sizes on start.
+//
+// Messages are handed over oldest first in batches of chat.mailbox.maxDelivered and a batch is only
+// removed once it was handed to a live connection, so a user who leaves halfway or a forwarding
+// node that never confirms finds the rest still waiting next time. Removing a batch only moves the
+// user's read offset, kept in a small .done file next to the mailbox; the file is rewritten without
+// the delivered records once they are over half of it and chat.mailbox.compactBytes, and deleted
+// when nothing is left. A crash in between can hand a batch over twice but never loses one.
+public class Mailbox {
+    private static final Path DIRECTORY = Path.of("db", "mailbox");
+    // Messages per batch
+    private static final int MAX_DELIVERED = Integer.getInteger("chat.mailbox.maxDelivered", 500);
+    // Delivered bytes at the start of a file before it is rewritten without them
+    private static final long COMPACT_BYTES = Long.getLong("chat.mailbox.compactBytes", 1 << 20);
+
+    // user id -> messages waiting
+    private static final IntIntMap pending = new IntIntMap();
+    private static final Object[] locks = new Object[64];
+
+    static {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    public record Message(long timeMillis, String from, String text) {}
+
+    // Rebuilds the index; only reads the record headers, not the messages
+    public static void load() {
+        if (!Files.isDirectory(DIRECTORY)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(DIRECTORY, "*.box")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String username = new String(Base64.getUrlDecoder().decode(name.substring(0, name.length() - 4)), StandardCharsets.UTF_8);
+                int count = countRecords(file, consumed(username));
+                synchronized (pending) {
+                    pending.put(Symbols.USERS.id(username), count);
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            Log.error("persistence", "Error loading mailboxes: " + e.getMessage());
+        }
+    }
+
+    public static void append(String username, String from, String text) throws IOException {
+        ByteBuffer record = encode(new Message(System.currentTimeMillis(), from, text));
+        int id = Symbols.USERS.id(username);
+        synchronized (lockFor(id)) {
+            Files.createDirectories(DIRECTORY);
+            try (FileChannel channel = FileChannel.open(fileFor(username), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                channel.force(false);
+            }
+            synchronized (pending) {
+                pending.put(id, pending.get(id, 0) + 1);
+            }
+        }
+    }
+
+    public static int pendingCount(String username) {
+        synchronized (pending) {
+            return pending.get(Symbols.USERS.lookup(username), 0);
+        }
+    }
+
+    // The oldest batch of messages waiting for the user; they stay in the mailbox until removed
+    public static List<Message> peek(String username) {
+        int id = Symbols.USERS.lookup(username);
+        if (pendingCount(username) == 0) {
+            return List.of();
+        }
+        synchronized (lockFor(id)) {
+            return read(username, MAX_DELIVERED);
+        }
+    }
+
+    // Removes the batch whose first message has the given time; false if the mailbox no longer
+    // starts with it, for example because the batch was confirmed twice
+    public static boolean remove(String username, long firstTime, int count) {
+        int id = Symbols.USERS.lookup(username);
+        if (id < 0) {
+            return false;
+        }
+        synchronized (lockFor(id)) {
+            List<Message> messages = read(username, count);
+            if (messages.size() < count || messages.get(0).timeMillis() != firstTime) {
+                return false;
+            }
+            long offset = consumed(username);
+            for (Message message : messages) {
+                offset += encode(message).capacity();
+            }
+            boolean empty;
+            try {
+                empty = advance(username, offset);
+            } catch (IOException e) {
+                Log.error("persistence", "Error updating mailbox of " + username + ": " + e.getMessage());
+                return false;
+            }
+            synchronized (pending) {
+                int left = pending.get(id, 0) - count;
+                if (empty || left <= 0) {
+                    pending.remove(id, 0);
+                } else {
+                    pending.put(id, left);
+                }
+            }
+            return true;
+        }
+    }
+
+    // Hands everything waiting for the user over in batches, oldest first, removing each batch
+    // handOver accepted and stopping at the first one it did not
+    public static void deliver(String username, Predicate<List<Message>> handOver) {
+        int id = Symbols.USERS.lookup(username);
+        if (pendingCount(username) == 0) {
+            return;
+        }
+        synchronized (lockFor(id)) {
+            List<Message> batch;
+            while (!(batch = read(username, MAX_DELIVERED)).isEmpty()) {
+                if (!handOver.test(batch) || !remove(username, batch.get(0).timeMillis(), batch.size())) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Up to max records after the user's read offset; whatever could be read if the file is damaged
+    private static List<Message> read(String username, int max) {
+        List<Message> messages = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(fileFor(username))))) {
+            in.skipNBytes(consumed(username));
+            while (messages.size() < max) {
+                try {
+                    in.readInt(); // record length
+                } catch (EOFException e) {
+                    break;
+                }
+                long time = in.readLong();
+                byte[] from = new byte[in.readInt()];
+                in.readFully(from);
+                byte[] text = new byte[in.readInt()];
+                in.readFully(text);
+                messages.add(new Message(time, new String(from, StandardCharsets.UTF_8), new String(text, StandardCharsets.UTF_8)));
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing waiting
+        } catch (IOException e) {
+            Log.error("persistence", "Error reading mailbox of " + username + ": " + e.getMessage());
+        }
+        return messages;
+    }
+
+    // Bytes at the start of the user's file that were already delivered
+    private static long consumed(String username) {
+        try {
+            byte[] bytes = Files.readAllBytes(doneFor(username));
+            return bytes.length == 8 ? ByteBuffer.wrap(bytes).getLong() : 0;
+        } catch (NoSuchFileException e) {
+            return 0;
+        } catch (IOException e) {
+            Log.error("persistence", "Error reading mailbox offset of " + username + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    // Moves the read offset past a delivered batch; true if the mailbox is now empty. The offset is
+    // always dropped before the file changes, so a crash in between only repeats messages
+    private static boolean advance(String username, long offset) throws IOException {
+        Path file = fileFor(username);
+        Path done = doneFor(username);
+        long size = Files.size(file);
+        if (offset >= size) {
+            Files.deleteIfExists(done);
+            Files.deleteIfExists(file);
+            return true;
+        }
+        if (offset >= COMPACT_BYTES && offset >= size / 2) {
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            try (FileChannel source = FileChannel.open(file, StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     StandardOpenOption.TRUNCATE_EXISTING)) {
+                for (long position = offset; position < size; ) {
+                    position += source.transferTo(position, size - position, target);
+                }
+                target.force(false);
+            }
+            Files.deleteIfExists(done);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(done, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            ByteBuffer bytes = ByteBuffer.allocate(8).putLong(0, offset);
+            while (bytes.hasRemaining()) {
+                channel.write(bytes, bytes.position());
+            }
+            channel.force(false);
+        }
+        return false;
+    }
+
+    private static ByteBuffer encode(Message message) {
+        byte[] fromBytes = message.from().getBytes(StandardCharsets.UTF_8);
+        byte[] textBytes = message.text().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(4 + 8 + 4 + fromBytes.length + 4 + textBytes.length);
+        record.putInt(record.capacity() - 4).putLong(message.timeMillis())
+            .putInt(fromBytes.length).put(fromBytes).putInt(textBytes.length).put(textBytes).flip();
+        return record;
+    }
+
+    private static int countRecords(Path file, long start) throws IOException {
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            long position = start;
+            while (position + 4 <= channel.size()) {
+                header.clear();
+                channel.read(header, position);
+                position += 4 + header.getInt(0);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static Object lockFor(int id) {
+        return locks[Math.floorMod(id, locks.length)];
+    }
+
+    private static Path fileFor(String username) {
+        return DIRECTORY.resolve(baseName(username) + ".box");
+    }
+
+    private static Path doneFor(String username) {
+        return DIRECTORY.resolve(baseName(username) + ".done");
+    }
+
+    private static String baseName(String username) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(username.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,174 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Chooses the model (and inference endpoint) for each AI room call. Every room has a chain of
+// candidates: its own model or the default one, followed by the fallback models. A candidate is
+// skipped while it already has too many calls in flight or its recent latency is above the limit,
+// so under load rooms spill over to the smaller models instead of queueing behind the big one.
+// Background work such as room summaries only gets a model with nothing in flight, so it never
+// pushes a room's bot onto a fallback or makes it queue.
+//
+//   -Dchat.llm.endpoint=http://localhost:11434     default endpoint
+//   -Dchat.llm.model=llama3                        default model
+//   -Dchat.llm.fallback=llama3.2:1b,qwen2:0.5b@http://other:11434
+//   -Dchat.llm.rooms=support=mistral,games=phi3@http://gpu:11434
+//   -Dchat.llm.maxInFlight=2  -Dchat.llm.maxLatencyMs=15000  -Dchat.llm.probeSeconds=30
+public class ModelRouter {
+    private static final String DEFAULT_ENDPOINT = System.getProperty("chat.llm.endpoint", "http://localhost:11434");
+    private static final int MAX_IN_FLIGHT = Integer.getInteger("chat.llm.maxInFlight", 2);
+    private static final long MAX_LATENCY_NANOS = Long.getLong("chat.llm.maxLatencyMs", 15000) * 1_000_000;
+    // A model skipped for being slow gets one call after this long, so its latency can recover
+    private static final long PROBE_NANOS = Long.getLong("chat.llm.probeSeconds", 30) * 1_000_000_000;
+    private static final double EWMA_WEIGHT = 0.3;
+
+    // One model on one endpoint, shared by every room that routes to it
+    public static class Target {
+        final String model;
+        final String endpoint;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong latencyNanos = new AtomicLong(); // EWMA, 0 until the first call
+        private final AtomicLong lastStart = new AtomicLong();
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+
+        private Target(String model, String endpoint) {
+            this.model = model;
+            this.endpoint = endpoint;
+        }
+
+        public String getModel() {
+            return model;
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        // Takes one of the in-flight slots if the target is fast enough and fewer than limit are taken.
+        // The slot is reserved with compareAndSet, so rooms asking at the same time cannot go past it
+        private boolean tryReserve(long now, int limit) {
+            if (latencyNanos.get() > MAX_LATENCY_NANOS && now - lastStart.get() <= PROBE_NANOS) {
+                return false;
+            }
+            for (int n = inFlight.get(); n < limit; n = inFlight.get()) {
+                if (inFlight.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // Rough time a new call would take: everything queued ahead of it plus itself
+        private long expectedNanos() {
+            return (inFlight.get() + 1) * Math.max(latencyNanos.get(), 1);
+        }
+
+        private void record(long nanos) {
+            latencyNanos.getAndUpdate(old -> old == 0 ? nanos : (long) (old * (1 - EWMA_WEIGHT) + nanos * EWMA_WEIGHT));
+        }
+    }
+
+    private static final Map<String, Target> targets = new LinkedHashMap<>();
+    private static final Target primary;
+    private static final List<Target> fallbacks = new ArrayList<>();
+    private static final Map<String, Target> roomTargets = new LinkedHashMap<>();
+
+    static {
+        primary = target(System.getProperty("chat.llm.model", "llama3"));
+        for (String spec : System.getProperty("chat.llm.fallback", "").split(",")) {
+            if (!spec.isBlank()) {
+                fallbacks.add(target(spec.trim()));
+            }
+        }
+        for (String entry : System.getProperty("chat.llm.rooms", "").split(",")) {
+            int separator = entry.indexOf('=');
+            if (separator > 0) {
+                roomTargets.put(entry.substring(0, separator).trim(), target(entry.substring(separator + 1).trim()));
+            }
+        }
+    }
+
+    // "model" or "model@endpoint"
+    private static Target target(String spec) {
+        int at = spec.indexOf('@');
+        String model = at < 0 ? spec : spec.substring(0, at);
+        String endpoint = at < 0 ? DEFAULT_ENDPOINT : spec.substring(at + 1);
+        return targets.computeIfAbsent(model + "@" + endpoint, k -> new Target(model, endpoint));
+    }
+
+    // The room's own model or the default one, then the fallbacks
+    private static List<Target> chain(String roomName) {
+        List<Target> chain = new ArrayList<>(fallbacks.size() + 1);
+        chain.add(roomTargets.getOrDefault(roomName, primary));
+        chain.addAll(fallbacks);
+        return chain;
+    }
+
+    // Picks a model for the room and counts the call as in flight; release() must follow
+    public static Target acquire(String roomName) {
+        long now = System.nanoTime();
+        List<Target> chain = chain(roomName);
+
+        Target chosen = null;
+        for (Target candidate : chain) {
+            if (candidate.tryReserve(now, MAX_IN_FLIGHT)) {
+                chosen = candidate;
+                break;
+            }
+        }
+        if (chosen == null) {
+            // Everything is saturated, queue where the wait should be shortest
+            chosen = chain.get(0);
+            for (Target candidate : chain) {
+                if (candidate.expectedNanos() < chosen.expectedNanos()) {
+                    chosen = candidate;
+                }
+            }
+            chosen.inFlight.incrementAndGet();
+        }
+        if (chosen != chain.get(0)) {
+            Log.debug("ai", "Routing " + roomName + " to " + chosen.model + " instead of " + chain.get(0).model);
+        }
+        chosen.lastStart.set(now);
+        chosen.calls.incrementAndGet();
+        return chosen;
+    }
+
+    // Like acquire() but only takes a model of the room's chain with nothing in flight, null if
+    // every one is busy; for work that can wait
+    public static Target acquireIdle(String roomName) {
+        long now = System.nanoTime();
+        for (Target candidate : chain(roomName)) {
+            if (candidate.tryReserve(now, 1)) {
+                candidate.lastStart.set(now);
+                candidate.calls.incrementAndGet();
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    // Failed calls count as taking the full latency limit so a broken model is routed around
+    public static void release(Target target, long nanos, boolean success) {
+        target.inFlight.decrementAndGet();
+        if (!success) {
+            target.failures.incrementAndGet();
+            nanos = Math.max(nanos, MAX_LATENCY_NANOS + 1);
+        }
+        target.record(nanos);
+    }
+
+    public static List<String> summary() {
+        List<String> lines = new ArrayList<>();
+        for (Target target : targets.values()) {
+            lines.add(String.format("- %s@%s: %d calls, %d failed, %d in flight, latency %d ms",
+                target.model, target.endpoint, target.calls.get(), target.failures.get(), target.inFlight.get(),
+                target.latencyNanos.get() / 1_000_000));
+        }
+        return lines;
+    }
+}
@@ -0,0 +1,149 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Who is online in each room, and the join/leave notices not yet sent to large rooms. In a big room
+// every notice goes to every member, so a reconnect wave costs members times reconnects writes.
+// Rooms at or above the batching threshold get their changes collected instead and sent as one
+// line per flush ("12 joined, 3 left"); a user who leaves and comes back within the same flush
+// cancels out and is not mentioned at all. Smaller rooms keep their individual notices.
+public class Presence {
+    public enum Change {
+        JOINED(" has joined the room.", true),
+        RECONNECTED(" has reconnected to the room.", true),
+        LEFT(" has left the room.", false),
+        DISCONNECTED(" has disconnected.", false);
+
+        private final String notice;
+        private final boolean arrival;
+
+        Change(String notice, boolean arrival) {
+            this.notice = notice;
+            this.arrival = arrival;
+        }
+
+        public String notice(String username) {
+            return username + notice;
+        }
+    }
+
+    // Names listed in a batched notice before it switches to a count
+    private static final int NAMES_SHOWN = Integer.getInteger("chat.presence.namesShown", 5);
+
+    private static final class RoomState {
+        // user id -> connections of that user in the room
+        final IntIntMap connections = new IntIntMap();
+        // username -> +1 arrived, -1 left since the last flush, in order of first change
+        final Map<String, Integer> pending = new LinkedHashMap<>();
+
+        boolean isEmpty() {
+            return connections.size() == 0 && pending.isEmpty();
+        }
+    }
+
+    // Only rooms with members or pending changes have an entry
+    private static final Map<String, RoomState> rooms = new HashMap<>(); // guarded by itself
+
+    public static void memberAdded(String roomName, int userId) {
+        synchronized (rooms) {
+            IntIntMap connections = rooms.computeIfAbsent(roomName, k -> new RoomState()).connections;
+            connections.put(userId, connections.get(userId, 0) + 1);
+        }
+    }
+
+    public static void memberRemoved(String roomName, int userId) {
+        synchronized (rooms) {
+            RoomState state = rooms.get(roomName);
+            if (state == null) {
+                return;
+            }
+            int count = state.connections.get(userId, 0);
+            if (count <= 1) {
+                state.connections.remove(userId, 0);
+            } else {
+                state.connections.put(userId, count - 1);
+            }
+            if (state.isEmpty()) {
+                rooms.remove(roomName);
+            }
+        }
+    }
+
+    // Collects a change for the next batched notice of the room
+    public static void queue(String roomName, String username, Change change) {
+        synchronized (rooms) {
+            RoomState state = rooms.computeIfAbsent(roomName, k -> new RoomState());
+            int net = state.pending.getOrDefault(username, 0) + (change.arrival ? 1 : -1);
+            if (net == 0) {
+                state.pending.remove(username);
+            } else {
+                state.pending.put(username, Integer.signum(net));
+            }
+            if (state.isEmpty()) {
+                rooms.remove(roomName);
+            }
+        }
+    }
+
+    // One notice per room with pending changes, and clears them
+    public static Map<String, String> drain() {
+        Map<String, String> notices = new HashMap<>();
+        synchronized (rooms) {
+            for (Iterator<Map.Entry<String, RoomState>> it = rooms.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, RoomState> room = it.next();
+                Map<String, Integer> pending = room.getValue().pending;
+                if (pending.isEmpty()) {
+                    continue;
+                }
+                List<String> joined = new ArrayList<>();
+                List<String> left = new ArrayList<>();
+                for (Map.Entry<String, Integer> change : pending.entrySet()) {
+                    (change.getValue() > 0 ? joined : left).add(change.getKey());
+                }
+                pending.clear();
+                if (room.getValue().isEmpty()) {
+                    it.remove();
+                }
+                StringBuilder notice = new StringBuilder("[Presence] ");
+                appendGroup(notice, joined, "joined");
+                if (!joined.isEmpty() && !left.isEmpty()) {
+                    notice.append(", ");
+                }
+                appendGroup(notice, left, "left");
+                notices.put(room.getKey(), notice.toString());
+            }
+        }
+        return notices;
+    }
+
+    // Names of the users online in the room, sorted
+    public static List<String> online(String roomName) {
+        List<String> names = new ArrayList<>();
+        synchronized (rooms) {
+            RoomState state = rooms.get(roomName);
+            if (state != null) {
+                state.connections.forEach((user, count) -> names.add(Symbols.USERS.name(user)));
+            }
+        }
+        Collections.sort(names);
+        return names;
+    }
+
+    private static void appendGroup(StringBuilder notice, List<String> names, String verb) {
+        if (names.isEmpty()) {
+            return;
+        }
+        notice.append(names.size()).append(' ').append(verb).append(" (");
+        for (int i = 0; i < Math.min(names.size(), NAMES_SHOWN); i++) {
+            notice.append(i > 0 ? ", " : "").append(names.get(i));
+        }
+        if (names.size() > NAMES_SHOWN) {
+            notice.append(" and ").append(names.size() - NAMES_SHOWN).append(" more");
+        }
+        notice.append(')');
+    }
+}
@@ -0,0 +1,77 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class RateLimiter {
+    // Limits can be tuned with -D properties when launching the server
+    private static final double USER_BURST = Double.parseDouble(System.getProperty("chat.rate.user.burst", "10"));
+    private static final double USER_RATE = Double.parseDouble(System.getProperty("chat.rate.user.perSecond", "5"));
+    private static final double ROOM_BURST = Double.parseDouble(System.getProperty("chat.rate.room.burst", "200"));
+    private static final double ROOM_RATE = Double.parseDouble(System.getProperty("chat.rate.room.perSecond", "100"));
+    private static final double AI_BURST = Double.parseDouble(System.getProperty("chat.rate.ai.burst", "3"));
+    private static final double AI_RATE = Double.parseDouble(System.getProperty("chat.rate.ai.perSecond", "0.2"));
+
+    private static final Map<String, Bucket> userBuckets = new ConcurrentHashMap<>();
+    private static final Map<String, Bucket> roomBuckets = new ConcurrentHashMap<>();
+    private static final Map<String, Bucket> aiBuckets = new ConcurrentHashMap<>();
+
+    // Returns true if the message may be delivered, false if the sender has to be throttled
+    public static boolean tryAcquire(String username, String roomName, boolean aiRoom) {
+        long now = System.nanoTime();
+
+        Bucket user = userBuckets.computeIfAbsent(username, k -> new Bucket(USER_BURST, USER_RATE));
+        if (!user.tryAcquire(now)) {
+            return false;
+        }
+
+        // Messages in AI rooms end up in callLLM, so they also spend a smaller, separate budget
+        Bucket ai = null;
+        if (aiRoom) {
+            ai = aiBuckets.computeIfAbsent(username, k -> new Bucket(AI_BURST, AI_RATE));
+            if (!ai.tryAcquire(now)) {
+                user.refund();
+                return false;
+            }
+        }
+
+        Bucket room = roomBuckets.computeIfAbsent(roomName, k -> new Bucket(ROOM_BURST, ROOM_RATE));
+        if (!room.tryAcquire(now)) {
+            user.refund();
+            if (ai != null) {
+                ai.refund();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    // Token bucket expressed as a "theoretical arrival time" (GCRA), so the whole
+    // state fits in one AtomicLong and is updated with a single compare-and-set
+    private static class Bucket {
+        private final long intervalNanos;
+        private final long burstNanos;
+        private final AtomicLong theoreticalArrival = new AtomicLong(System.nanoTime());
+
+        Bucket(double burst, double perSecond) {
+            this.intervalNanos = (long) (1_000_000_000L / perSecond);
+            this.burstNanos = (long) (intervalNanos * Math.max(1, burst));
+        }
+
+        boolean tryAcquire(long now) {
+            while (true) {
+                long tat = theoreticalArrival.get();
+                long base = Math.max(tat, now);
+                if (base + intervalNanos - now > burstNanos) {
+                    return false;
+                }
+                if (theoreticalArrival.compareAndSet(tat, base + intervalNanos)) {
+                    return true;
+                }
+            }
+        }
+
+        void refund() {
+            theoreticalArrival.addAndGet(-intervalNanos);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+// Read-only copy of the room list and room members that /rooms and /users are answered from.
+// The server publishes a new copy shortly after rooms or memberships change; queries only read the
+// current copy, so a long listing never holds chatRoomsLock while it is written to a client.
+public class RoomDirectory {
+    public static final int PAGE_SIZE = Integer.getInteger("chat.directory.pageSize", 20);
+
+    public record Room(String name, int members, boolean ai) {}
+
+    // Sorted once when published, prefix queries are a binary search on byName
+    private record Snapshot(Room[] byName, Room[] byMembers, Map<String, List<String>> members) {}
+
+    private static volatile Snapshot current = new Snapshot(new Room[0], new Room[0], Map.of());
+
+    // The lists in members must not be modified afterwards
+    public static void publish(List<Room> rooms, Map<String, List<String>> members) {
+        Room[] byName = rooms.toArray(new Room[0]);
+        Arrays.sort(byName, Comparator.comparing(Room::name));
+        Room[] byMembers = byName.clone();
+        Arrays.sort(byMembers, Comparator.comparingInt(Room::members).reversed().thenComparing(Room::name));
+        for (List<String> names : members.values()) {
+            Collections.sort(names);
+        }
+        current = new Snapshot(byName, byMembers, members);
+    }
+
+    // One page of a listing with the total number of matches
+    public record Page<T>(List<T> items, int page, int pages, int total) {}
+
+    public static Page<Room> rooms(String prefix, boolean byMembers, int page) {
+        Snapshot snapshot = current;
+        List<Room> matches;
+        if (byMembers) {
+            matches = new ArrayList<>();
+            for (Room room : snapshot.byMembers()) {
+                if (room.name().startsWith(prefix)) {
+                    matches.add(room);
+                }
+            }
+        } else {
+            Room[] rooms = snapshot.byName();
+            int from = lowerBound(rooms, prefix);
+            int to = from;
+            while (to < rooms.length && rooms[to].name().startsWith(prefix)) {
+                to++;
+            }
+            matches = Arrays.asList(rooms).subList(from, to);
+        }
+        return page(matches, page);
+    }
+
+    public static Page<String> users(String roomName, String prefix, int page) {
+        List<String> members = current.members().getOrDefault(roomName, List.of());
+        if (prefix.isEmpty()) {
+            return page(members, page);
+        }
+        List<String> matches = new ArrayList<>();
+        for (String member : members) {
+            if (member.startsWith(prefix)) {
+                matches.add(member);
+            }
+        }
+        return page(matches, page);
+    }
+
+    private static <T> Page<T> page(List<T> matches, int page) {
+        int pages = Math.max(1, (matches.size() + PAGE_SIZE - 1) / PAGE_SIZE);
+        int clamped = Math.min(Math.max(page, 1), pages);
+        int from = (clamped - 1) * PAGE_SIZE;
+        return new Page<>(matches.subList(from, Math.min(from + PAGE_SIZE, matches.size())), clamped, pages, matches.size());
+    }
+
+    // First room whose name is not smaller than the prefix
+    private static int lowerBound(Room[] rooms, String prefix) {
+        int low = 0;
+        int high = rooms.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (rooms[middle].name().compareTo(prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
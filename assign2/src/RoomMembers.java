@@ -0,0 +1,68 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Local members of one room: connections and user ids in two dense arrays, so a broadcast walks
+// contiguous memory instead of a hash map's entries. Removal moves the last member into the gap.
+// Guarded by chatRoomsLock like the rest of the room state.
+public class RoomMembers {
+    private ClientConnection[] connections = new ClientConnection[4];
+    private int[] users = new int[4];
+    private int size = 0;
+    // connection id -> position in the arrays
+    private final IntIntMap positions = new IntIntMap(4);
+    // Broadcasts handed to the fan-out workers and not finished yet, see Fanout
+    private final AtomicInteger fanoutsInFlight = new AtomicInteger();
+
+    public boolean add(ClientConnection connection, int userId) {
+        int position = positions.get(connection.getId(), -1);
+        if (position >= 0) {
+            users[position] = userId;
+            return false;
+        }
+        if (size == connections.length) {
+            connections = Arrays.copyOf(connections, size * 2);
+            users = Arrays.copyOf(users, size * 2);
+        }
+        connections[size] = connection;
+        users[size] = userId;
+        positions.put(connection.getId(), size++);
+        return true;
+    }
+
+    // Returns the user id the connection was in the room as, -1 if it was not in the room
+    public int remove(ClientConnection connection) {
+        int position = positions.remove(connection.getId(), -1);
+        if (position < 0) {
+            return -1;
+        }
+        int userId = users[position];
+        int last = --size;
+        if (position != last) {
+            connections[position] = connections[last];
+            users[position] = users[last];
+            positions.put(connections[position].getId(), position);
+        }
+        connections[last] = null;
+        return userId;
+    }
+
+    public boolean contains(ClientConnection connection) {
+        return positions.containsKey(connection.getId());
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public ClientConnection connection(int index) {
+        return connections[index];
+    }
+
+    public int user(int index) {
+        return users[index];
+    }
+
+    public AtomicInteger fanoutsInFlight() {
+        return fanoutsInFlight;
+    }
+}
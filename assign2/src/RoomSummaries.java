@@ -0,0 +1,173 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// Running summaries of the AI rooms for /summary. Each summary remembers how many lines of the
+// room's history it covers; updating it sends the model only the current summary and the lines
+// after that checkpoint, never the whole history, and moves the checkpoint forward.
+//
+// Updates run on one background thread, one model call at a time, wait while the server is
+// shedding load and only use a model that has no call in flight, so the room bots always come
+// first. A room is queued once
+// chat.summary.minNewLines lines are waiting, or when someone asks for a summary that is missing
+// or older than chat.summary.minIntervalSeconds. /summary itself only reads the cached summary and
+// never waits for the model.
+//
+// Summaries are kept in the snapshot and sent to the other cluster nodes, since only the node
+// owning an AI room has its history.
+public class RoomSummaries {
+    private static final int MIN_NEW_LINES = Integer.getInteger("chat.summary.minNewLines", 20);
+    private static final long MIN_INTERVAL_MILLIS = Long.getLong("chat.summary.minIntervalSeconds", 60) * 1000;
+    // Lines folded in per model call, a long backlog takes several calls
+    private static final int MAX_BATCH_LINES = Integer.getInteger("chat.summary.maxBatchLines", 200);
+    private static final int MAX_SENTENCES = Integer.getInteger("chat.summary.maxSentences", 8);
+    private static final long RETRY_MILLIS = 5000;
+
+    // A summary of the first `covered` lines of the room's history
+    public record Summary(String text, int covered, long updatedAt) {}
+
+    private record Room(String prompt, List<String> history) {}
+
+    private static final Map<String, Summary> summaries = new ConcurrentHashMap<>();
+    private static final Map<String, Room> rooms = new ConcurrentHashMap<>();
+    private static final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    private static final Set<String> queued = ConcurrentHashMap.newKeySet();
+
+    private static final LongAdder folds = new LongAdder();
+    private static final LongAdder linesFolded = new LongAdder();
+    private static final LongAdder failures = new LongAdder();
+    private static final LongAdder served = new LongAdder();
+
+    static {
+        Thread worker = new Thread(RoomSummaries::run, "summary-worker");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // Called after lines were added to an AI room's history (guarded by the list itself)
+    public static void historyGrew(String roomName, String prompt, List<String> history) {
+        rooms.put(roomName, new Room(prompt, history));
+        if (waiting(roomName, history) >= MIN_NEW_LINES) {
+            enqueue(roomName);
+        }
+    }
+
+    // The cached summary, null if there is none yet. Queues an update if it is missing or stale
+    public static Summary request(String roomName, String prompt, List<String> history) {
+        rooms.put(roomName, new Room(prompt, history));
+        Summary summary = summaries.get(roomName);
+        if (waiting(roomName, history) > 0
+                && (summary == null || System.currentTimeMillis() - summary.updatedAt() > MIN_INTERVAL_MILLIS)) {
+            enqueue(roomName);
+        }
+        if (summary != null) {
+            served.increment();
+        }
+        return summary;
+    }
+
+    // Lines of the history the cached summary does not cover yet
+    public static int waiting(String roomName, List<String> history) {
+        Summary summary = summaries.get(roomName);
+        int size;
+        synchronized (history) {
+            size = history.size();
+        }
+        return Math.max(0, size - (summary == null ? 0 : summary.covered()));
+    }
+
+    // A summary from the snapshot or from the node owning the room; an older one never replaces a newer one
+    public static void restore(String roomName, Summary summary) {
+        summaries.merge(roomName, summary, (current, candidate) -> candidate.covered() >= current.covered() ? candidate : current);
+    }
+
+    public static Map<String, Summary> all() {
+        return Map.copyOf(summaries);
+    }
+
+    public static List<String> summary() {
+        return List.of(String.format("- %d rooms summarized, %d updates (%d lines folded in, %d failed), %d served from cache, %d queued",
+            summaries.size(), folds.sum(), linesFolded.sum(), failures.sum(), served.sum(), queued.size()));
+    }
+
+    private static void enqueue(String roomName) {
+        if (queued.add(roomName)) {
+            queue.add(roomName);
+        }
+    }
+
+    private static void run() {
+        while (true) {
+            String roomName = null;
+            try {
+                roomName = queue.take();
+                // Room bots and connections first
+                while (Admission.overloaded()) {
+                    Thread.sleep(RETRY_MILLIS);
+                }
+                queued.remove(roomName);
+                fold(roomName);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                failures.increment();
+                Log.error("ai", "Summary of " + roomName + " failed", e);
+            }
+        }
+    }
+
+    private static void fold(String roomName) throws InterruptedException {
+        Room room = rooms.get(roomName);
+        if (room == null) {
+            return;
+        }
+        Summary previous = summaries.get(roomName);
+        int from = previous == null ? 0 : previous.covered();
+        List<String> lines;
+        synchronized (room.history()) {
+            if (from >= room.history().size()) {
+                return;
+            }
+            lines = new ArrayList<>(room.history().subList(from, Math.min(room.history().size(), from + MAX_BATCH_LINES)));
+        }
+
+        StringBuilder prompt = new StringBuilder("You keep a running summary of the chat room '").append(roomName)
+            .append("', whose assistant was told: ").append(room.prompt()).append('\n');
+        if (previous != null) {
+            prompt.append("Summary so far:\n").append(previous.text()).append('\n');
+        }
+        prompt.append("New messages:\n");
+        for (String line : lines) {
+            prompt.append(line).append('\n');
+        }
+        prompt.append("Write the ").append(previous == null ? "" : "updated ").append("summary in at most ").append(MAX_SENTENCES)
+            .append(" sentences. Reply with the summary only.");
+
+        // Only a model the room bots are not using right now
+        ModelRouter.Target target;
+        while ((target = ModelRouter.acquireIdle(roomName)) == null) {
+            Thread.sleep(RETRY_MILLIS);
+        }
+        String text = Server.callLLM(target, prompt.toString());
+        if (text.startsWith("[AI Error")) {
+            failures.increment();
+            return; // Tried again the next time the room is queued
+        }
+        Summary updated = new Summary(text.replace("\n", " ").replace("\r", " ").trim(), from + lines.size(), System.currentTimeMillis());
+        summaries.put(roomName, updated);
+        folds.increment();
+        linesFolded.add(lines.size());
+        Cluster.summaryUpdated(roomName, updated);
+        Log.debug("ai", "Summary of " + roomName + " now covers " + updated.covered() + " lines");
+
+        // Still behind after a long backlog, continue with the next batch
+        if (waiting(roomName, room.history()) >= MIN_NEW_LINES) {
+            enqueue(roomName);
+        }
+    }
+}
@@ -0,0 +1,538 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Full-text index over the room lines sent through this node, so admins can find who said what.
+// The chat path only drops the line on a bounded queue; one background thread waits on it, gives
+// the line the next sequence number, stores it and adds its words to an in-memory buffer.
+//
+// The buffer is sealed into an immutable segment every SEGMENT_DOCS lines, or FLUSH_MS after its
+// first line. A segment has a sorted term dictionary and one byte array with every posting list,
+// each a run of varint (sequence delta, count) pairs. When MERGE_FACTOR segments of the same tier
+// pile up at the end of the list they are merged into one on the merger thread, so a search only
+// visits a few dozen segments however many lines there are. Searches read the segment array
+// without locking and rank the lines holding every term with BM25.
+//
+// Only about the newest chat.search.maxLines lines are kept. Once there are more, whole segments are
+// dropped from the front along with the stored lines below them; merges stop at a tenth of the limit
+// so this never drops too much at once. Sequence numbers are longs and postings are stored
+// relative to the first line of their segment, so they never run out.
+//
+// The author of each line is indexed as the term "from:<username>".
+public class SearchIndex {
+    private static final int SEGMENT_DOCS = Integer.getInteger("chat.search.segmentDocs", 4096);
+    private static final int FLUSH_MS = Integer.getInteger("chat.search.flushMs", 1000);
+    private static final int MERGE_FACTOR = Integer.getInteger("chat.search.mergeFactor", 8);
+    // Lines beyond this many waiting to be indexed are dropped and counted
+    private static final int QUEUE_CAPACITY = Integer.getInteger("chat.search.queue", 65536);
+    private static final int MAX_LINES = Integer.getInteger("chat.search.maxLines", 1_000_000);
+    // Merging stops at this size so dropping the oldest segment only loses a small part of the lines
+    private static final int MAX_MERGED_DOCS = Math.max(SEGMENT_DOCS, MAX_LINES / 10);
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+
+    private static final int CHUNK_BITS = 14;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    public record Hit(long sequence, long timeMillis, String room, String username, String text, float score) {}
+
+    private record Line(long timeMillis, int room, int user, String text) {}
+
+    private static final LinkedBlockingQueue<Line> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong expired = new AtomicLong();
+
+    // Stored lines by sequence number, in fixed-size chunks so growing never copies them.
+    // Only the indexer writes; a line is read only after the segment holding it was published.
+    // Expired chunks are cut off in a new store, so a search still holding the old one can read them
+    private static volatile Store store = new Store(0, new Chunk[16]);
+
+    // Sealed segments in sequence order; replaced as a whole, guarded by segmentsLock for writers
+    private static volatile Segment[] segments = new Segment[0];
+    private static final Object segmentsLock = new Object();
+
+    // Owned by the indexer thread
+    private static final Map<String, Postings> buffer = new HashMap<>();
+    private static long nextSequence = 0;
+    private static long bufferStart = 0;
+    private static long bufferLength = 0;
+    private static long bufferOpenedAt = 0;
+
+    private static final ExecutorService merger = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "search-merger");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final AtomicBoolean merging = new AtomicBoolean(false);
+
+    static {
+        Thread indexer = new Thread(SearchIndex::indexLoop, "search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    // chunks[i] holds the lines of chunk number base + i
+    private record Store(long base, Chunk[] chunks) {
+        // Null if the line expired
+        Chunk chunk(long sequence) {
+            long i = (sequence >>> CHUNK_BITS) - base;
+            return i >= 0 && i < chunks.length ? chunks[(int) i] : null;
+        }
+    }
+
+    private static final class Chunk {
+        final long[] times = new long[CHUNK_SIZE];
+        final int[] rooms = new int[CHUNK_SIZE];
+        final int[] users = new int[CHUNK_SIZE];
+        final int[] lengths = new int[CHUNK_SIZE];
+        final String[] texts = new String[CHUNK_SIZE];
+    }
+
+    // (sequence, count) pairs of one term, in sequence order; sequences relative to the segment
+    private static final class Postings {
+        int[] data = new int[4];
+        int size = 0;
+
+        void add(int sequence, int count) {
+            if (size + 2 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            data[size++] = sequence;
+            data[size++] = count;
+        }
+    }
+
+    private static final class Segment {
+        final long first;
+        final long end;
+        final long totalLength;
+        final String[] terms;
+        final int[] docFreqs;
+        final int[] offsets;
+        final byte[] postings;
+
+        Segment(long first, long end, long totalLength, TreeMap<String, Postings> lists) {
+            this.first = first;
+            this.end = end;
+            this.totalLength = totalLength;
+            terms = lists.keySet().toArray(new String[0]);
+            docFreqs = new int[terms.length];
+            offsets = new int[terms.length + 1];
+            byte[] bytes = new byte[Math.max(16, lists.size() * 4)];
+            int position = 0;
+            int t = 0;
+            for (Postings list : lists.values()) {
+                offsets[t] = position;
+                docFreqs[t] = list.size / 2;
+                int previous = 0;
+                for (int i = 0; i < list.size; i += 2) {
+                    if (position + 10 > bytes.length) {
+                        bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                    }
+                    position = writeVarint(bytes, position, list.data[i] - previous);
+                    position = writeVarint(bytes, position, list.data[i + 1]);
+                    previous = list.data[i];
+                }
+                t++;
+            }
+            offsets[t] = position;
+            postings = Arrays.copyOf(bytes, position);
+        }
+
+        int docs() {
+            return (int) (end - first);
+        }
+
+        int find(String term) {
+            return Arrays.binarySearch(terms, term);
+        }
+
+        // Decodes a term's list into sequences (relative to first) and counts, returns its length
+        int decode(int term, int[] sequences, int[] counts) {
+            int position = offsets[term];
+            int limit = offsets[term + 1];
+            int sequence = 0;
+            int n = 0;
+            while (position < limit) {
+                int value = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = postings[position++];
+                    value |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                sequence += value;
+                value = 0;
+                shift = 0;
+                do {
+                    b = postings[position++];
+                    value |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                sequences[n] = sequence;
+                counts[n++] = value;
+            }
+            return n;
+        }
+
+        // Segments of about the same size share a tier, only those are merged together
+        int tier() {
+            int tier = 0;
+            for (long size = SEGMENT_DOCS; docs() > size; size *= MERGE_FACTOR) {
+                tier++;
+            }
+            return tier;
+        }
+    }
+
+    // Called on the chat path; never waits for the indexer
+    public static void add(String room, String username, String text) {
+        if (!queue.offer(new Line(System.currentTimeMillis(), Symbols.ROOMS.id(room), Symbols.USERS.id(username), text))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    // The lines holding every term, best first. A null room searches all rooms
+    public static List<Hit> search(String query, String room, int limit) {
+        Set<String> terms = queryTerms(query);
+        int roomId = room == null ? -1 : Symbols.ROOMS.lookup(room);
+        if (terms.isEmpty() || (room != null && roomId < 0)) {
+            return List.of();
+        }
+        Segment[] snapshot = segments;
+        Store lines = store;
+        long docs = 0;
+        long totalLength = 0;
+        for (Segment segment : snapshot) {
+            docs += segment.docs();
+            totalLength += segment.totalLength;
+        }
+        if (docs == 0) {
+            return List.of();
+        }
+        float averageLength = (float) totalLength / docs;
+
+        String[] queryTerms = terms.toArray(new String[0]);
+        float[] idf = new float[queryTerms.length];
+        for (int q = 0; q < queryTerms.length; q++) {
+            long docFreq = 0;
+            for (Segment segment : snapshot) {
+                int t = segment.find(queryTerms[q]);
+                if (t >= 0) {
+                    docFreq += segment.docFreqs[t];
+                }
+            }
+            if (docFreq == 0) {
+                return List.of(); // Nothing can hold every term
+            }
+            idf[q] = (float) Math.log(1 + (docs - docFreq + 0.5) / (docFreq + 0.5));
+        }
+
+        // Min-heap of the best hits so far, ties go to the newer line
+        PriorityQueue<long[]> best = new PriorityQueue<>(limit + 1, (a, b) ->
+            a[0] != b[0] ? Float.compare(Float.intBitsToFloat((int) a[0]), Float.intBitsToFloat((int) b[0])) : Long.compare(a[1], b[1]));
+        for (Segment segment : snapshot) {
+            int[] termIndexes = new int[queryTerms.length];
+            boolean complete = true;
+            for (int q = 0; q < queryTerms.length && complete; q++) {
+                termIndexes[q] = segment.find(queryTerms[q]);
+                complete = termIndexes[q] >= 0;
+            }
+            if (!complete) {
+                continue;
+            }
+            // Start from the rarest term so the candidate list is as short as possible
+            int rarest = 0;
+            for (int q = 1; q < queryTerms.length; q++) {
+                if (segment.docFreqs[termIndexes[q]] < segment.docFreqs[termIndexes[rarest]]) {
+                    rarest = q;
+                }
+            }
+            int[] candidates = new int[segment.docFreqs[termIndexes[rarest]]];
+            int[][] counts = new int[queryTerms.length][candidates.length];
+            int n = segment.decode(termIndexes[rarest], candidates, counts[rarest]);
+            for (int q = 0; q < queryTerms.length && n > 0; q++) {
+                if (q == rarest) {
+                    continue;
+                }
+                int[] sequences = new int[segment.docFreqs[termIndexes[q]]];
+                int[] termCounts = new int[sequences.length];
+                int m = segment.decode(termIndexes[q], sequences, termCounts);
+                // Intersection of two sorted lists, keeping every term's counts aligned
+                int kept = 0;
+                for (int i = 0, j = 0; i < n && j < m; ) {
+                    if (candidates[i] < sequences[j]) {
+                        i++;
+                    } else if (candidates[i] > sequences[j]) {
+                        j++;
+                    } else {
+                        candidates[kept] = candidates[i];
+                        for (int p = 0; p < queryTerms.length; p++) {
+                            counts[p][kept] = p == q ? termCounts[j] : counts[p][i];
+                        }
+                        kept++;
+                        i++;
+                        j++;
+                    }
+                }
+                n = kept;
+            }
+            for (int i = 0; i < n; i++) {
+                long sequence = segment.first + candidates[i];
+                Chunk chunk = lines.chunk(sequence);
+                int slot = (int) sequence & (CHUNK_SIZE - 1);
+                if (chunk == null || (roomId >= 0 && chunk.rooms[slot] != roomId)) {
+                    continue;
+                }
+                float norm = K1 * (1 - B + B * chunk.lengths[slot] / averageLength);
+                float score = 0;
+                for (int q = 0; q < queryTerms.length; q++) {
+                    int count = counts[q][i];
+                    score += idf[q] * count * (K1 + 1) / (count + norm);
+                }
+                best.add(new long[] {Float.floatToIntBits(score), sequence});
+                if (best.size() > limit) {
+                    best.poll();
+                }
+            }
+        }
+
+        Hit[] hits = new Hit[best.size()];
+        for (int i = hits.length - 1; i >= 0; i--) {
+            long[] entry = best.poll();
+            long sequence = entry[1];
+            Chunk chunk = lines.chunk(sequence);
+            int slot = (int) sequence & (CHUNK_SIZE - 1);
+            hits[i] = new Hit(sequence, chunk.times[slot], Symbols.ROOMS.name(chunk.rooms[slot]),
+                Symbols.USERS.name(chunk.users[slot]), chunk.texts[slot], Float.intBitsToFloat((int) entry[0]));
+        }
+        return Arrays.asList(hits);
+    }
+
+    public static List<String> summary() {
+        Segment[] snapshot = segments;
+        long docs = 0;
+        long bytes = 0;
+        for (Segment segment : snapshot) {
+            docs += segment.docs();
+            bytes += segment.postings.length;
+        }
+        return List.of(String.format("- %d lines in %d segments (limit %d), %d KB of postings, %d waiting, %d dropped, %d expired",
+            docs, snapshot.length, MAX_LINES, bytes / 1024, queue.size(), dropped.get(), expired.get()));
+    }
+
+    // Sleeps on the queue while the buffer is empty, otherwise at most until it is due to be sealed
+    private static void indexLoop() {
+        while (true) {
+            Line line;
+            try {
+                if (nextSequence == bufferStart) {
+                    line = queue.take();
+                } else {
+                    long wait = bufferOpenedAt + FLUSH_MS - System.currentTimeMillis();
+                    line = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : null;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (line == null) {
+                seal();
+                continue;
+            }
+            index(line);
+            if (nextSequence - bufferStart >= SEGMENT_DOCS) {
+                seal();
+            }
+        }
+    }
+
+    private static void index(Line line) {
+        long sequence = nextSequence++;
+        if (sequence == bufferStart) {
+            bufferOpenedAt = System.currentTimeMillis();
+        }
+        Store current = store;
+        int chunkIndex = (int) ((sequence >>> CHUNK_BITS) - current.base());
+        if (chunkIndex == current.chunks().length) {
+            current = new Store(current.base(), Arrays.copyOf(current.chunks(), current.chunks().length * 2));
+        }
+        if (current.chunks()[chunkIndex] == null) {
+            current.chunks()[chunkIndex] = new Chunk();
+            store = current;
+        }
+        Chunk chunk = current.chunks()[chunkIndex];
+        int slot = (int) sequence & (CHUNK_SIZE - 1);
+        chunk.times[slot] = line.timeMillis();
+        chunk.rooms[slot] = line.room();
+        chunk.users[slot] = line.user();
+        chunk.texts[slot] = line.text();
+
+        Map<String, Integer> counts = new HashMap<>();
+        int length = 0;
+        for (String term : textTerms(line.text())) {
+            counts.merge(term, 1, Integer::sum);
+            length++;
+        }
+        counts.put("from:" + Symbols.USERS.name(line.user()).toLowerCase(Locale.ROOT), 1);
+        chunk.lengths[slot] = length;
+        bufferLength += length;
+        int relative = (int) (sequence - bufferStart);
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            buffer.computeIfAbsent(entry.getKey(), k -> new Postings()).add(relative, entry.getValue());
+        }
+    }
+
+    private static void seal() {
+        Segment segment = new Segment(bufferStart, nextSequence, bufferLength, new TreeMap<>(buffer));
+        buffer.clear();
+        bufferStart = nextSequence;
+        bufferLength = 0;
+        long oldest;
+        synchronized (segmentsLock) {
+            Segment[] current = segments;
+            Segment[] next = Arrays.copyOf(current, current.length + 1);
+            next[current.length] = segment;
+            long docs = 0;
+            for (Segment kept : next) {
+                docs += kept.docs();
+            }
+            int drop = 0;
+            while (drop < next.length - 1 && docs - next[drop].docs() >= MAX_LINES) {
+                docs -= next[drop++].docs();
+            }
+            for (int i = 0; i < drop; i++) {
+                expired.addAndGet(next[i].docs());
+            }
+            segments = Arrays.copyOfRange(next, drop, next.length);
+            oldest = next[drop].first;
+        }
+        releaseChunks(oldest);
+        scheduleMerge();
+    }
+
+    // Drops the chunks holding only lines below the oldest kept segment
+    private static void releaseChunks(long oldest) {
+        Store current = store;
+        int below = (int) ((oldest >>> CHUNK_BITS) - current.base());
+        if (below <= 0) {
+            return;
+        }
+        int length = Math.max(16, current.chunks().length - below);
+        store = new Store(current.base() + below, Arrays.copyOfRange(current.chunks(), below, below + length));
+    }
+
+    private static void scheduleMerge() {
+        if (merging.compareAndSet(false, true)) {
+            merger.execute(SearchIndex::mergeTail);
+        }
+    }
+
+    // Merges the newest run of MERGE_FACTOR same-tier segments, repeatedly, so merges cascade up the tiers.
+    // Runs at the end of the array are contiguous in sequence order; the indexer appends and drops
+    // expired segments meanwhile, so the run is looked up again and the merge thrown away if it is gone
+    private static void mergeTail() {
+        try {
+            while (true) {
+                Segment[] current = segments;
+                int end = current.length;
+                int start = end;
+                while (start > 0 && end - start < MERGE_FACTOR && current[start - 1].tier() == current[end - 1].tier()) {
+                    start--;
+                }
+                if (end - start < MERGE_FACTOR || current[end - 1].end - current[start].first > MAX_MERGED_DOCS) {
+                    return;
+                }
+                Segment[] run = Arrays.copyOfRange(current, start, end);
+                Segment merged = merge(run);
+                synchronized (segmentsLock) {
+                    Segment[] latest = segments;
+                    int at = 0;
+                    while (at < latest.length && latest[at] != run[0]) {
+                        at++;
+                    }
+                    if (at + run.length > latest.length || !Arrays.equals(latest, at, at + run.length, run, 0, run.length)) {
+                        continue;
+                    }
+                    Segment[] next = new Segment[latest.length - run.length + 1];
+                    System.arraycopy(latest, 0, next, 0, at);
+                    next[at] = merged;
+                    System.arraycopy(latest, at + run.length, next, at + 1, latest.length - at - run.length);
+                    segments = next;
+                }
+                Log.debug("search", "Merged " + run.length + " segments into one of " + merged.docs() + " lines");
+            }
+        } catch (RuntimeException e) {
+            Log.error("search", "Segment merge failed", e);
+        } finally {
+            merging.set(false);
+        }
+    }
+
+    private static Segment merge(Segment[] run) {
+        TreeMap<String, Postings> lists = new TreeMap<>();
+        long totalLength = 0;
+        int[] sequences = new int[0];
+        int[] counts = new int[0];
+        for (Segment segment : run) {
+            totalLength += segment.totalLength;
+            int shift = (int) (segment.first - run[0].first);
+            for (int t = 0; t < segment.terms.length; t++) {
+                if (sequences.length < segment.docFreqs[t]) {
+                    sequences = new int[segment.docFreqs[t]];
+                    counts = new int[segment.docFreqs[t]];
+                }
+                int n = segment.decode(t, sequences, counts);
+                Postings list = lists.computeIfAbsent(segment.terms[t], k -> new Postings());
+                for (int i = 0; i < n; i++) {
+                    list.add(shift + sequences[i], counts[i]);
+                }
+            }
+        }
+        return new Segment(run[0].first, run[run.length - 1].end, totalLength, lists);
+    }
+
+    private static List<String> textTerms(String text) {
+        List<String> terms = new ArrayList<>();
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                terms.add(word);
+            }
+        }
+        return terms;
+    }
+
+    private static Set<String> queryTerms(String query) {
+        Set<String> terms = new LinkedHashSet<>();
+        for (String word : query.trim().split("\\s+")) {
+            if (word.toLowerCase(Locale.ROOT).startsWith("from:") && word.length() > 5) {
+                terms.add(word.toLowerCase(Locale.ROOT));
+            } else {
+                terms.addAll(textTerms(word));
+            }
+        }
+        return terms;
+    }
+
+    private static int writeVarint(byte[] bytes, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            bytes[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+}
@@ -1,13 +1,21 @@
 import java.net.*;
 import java.io.*;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
@@ -15,18 +23,24 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Server {
-    private static final int PORT = 8080;
+    private static final int PORT = Integer.getInteger("chat.port", 8080);
     private static final String HOST = "0.0.0.0";
     private static SSLServerSocket serverSocket;
 
     private static final Map<Socket, String> clientUsernames = new HashMap<>();
-    private static final Map<String, Map<Socket, String>> chatRooms = new HashMap<>();
-    private static final Map<String, String> aiRoomPrompts = new HashMap<>();
+    private static final Map<String, RoomMembers> chatRooms = new HashMap<>();
+    private static final Map<String, String> aiRoomPrompts = new ConcurrentHashMap<>();
     private static final Map<String, List<String>> aiRoomHistory = new HashMap<>();
     private static final Map<String, Token> userTokens = new HashMap<>(); 
-    private static final Map<String, String> userCurrentRooms = new HashMap<>();
+    // Rooms each user follows, the one their messages go to first, guarded by userRoomsLock
+    private static final Subscriptions subscriptions = new Subscriptions();
+    // clientUsernames indexed by user id, guarded by clientUsernamesLock
+    private static Socket[] socketsByUser = new Socket[64];
     private static final Map<String, List<String>> aiRoomBuffer = new ConcurrentHashMap<>();
     private static final Map<String, AtomicBoolean> aiRoomBotBusy = new ConcurrentHashMap<>();
+    // Embedded AI room history, searched for the lines relevant to each new batch
+    private static final Map<String, VectorIndex> aiRoomIndexes = new ConcurrentHashMap<>();
+    private static final Map<Socket, ClientConnection> connections = new ConcurrentHashMap<>();
     
     private static final ReentrantLock userRoomsLock = new ReentrantLock();
     private static final ReentrantLock clientUsernamesLock = new ReentrantLock();
@@ -35,6 +49,34 @@ public class Server {
     
     private static final String TOKENS_FILE = "db/tokens.csv";
     private static final String USER_ROOMS_FILE = "db/user_rooms.csv";
+    private static final Path SNAPSHOT_FILE = Path.of("db/state.snap");
+    private static final int HEARTBEAT_INTERVAL_MS = Integer.getInteger("chat.heartbeat.intervalMs", 15000);
+    private static final int HEARTBEAT_TIMEOUT_MS = Integer.getInteger("chat.heartbeat.timeoutMs", 45000);
+    // Drives heartbeats for every connection; expired timers run on virtual threads
+    private static final TimerWheel timerWheel = new TimerWheel("timer-wheel", 100, TimeUnit.MILLISECONDS, 512,
+        Thread::startVirtualThread);
+    private static final int SESSION_FLUSH_SECONDS = Integer.getInteger("chat.session.flushSeconds", 5);
+    private static final int SNAPSHOT_INTERVAL_SECONDS = Integer.getInteger("chat.snapshot.intervalSeconds", 30);
+    private static final ScheduledExecutorService snapshotScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final int LLM_CONNECT_TIMEOUT_MS = Integer.getInteger("chat.llm.connectTimeoutMs", 5000);
+    private static final int LLM_READ_TIMEOUT_MS = Integer.getInteger("chat.llm.readTimeoutMs", 120000);
+    // Changes are collected for this long before the room directory is rebuilt
+    private static final int DIRECTORY_REFRESH_MS = Integer.getInteger("chat.directory.refreshMs", 200);
+    private static final AtomicBoolean directoryRefreshPending = new AtomicBoolean(false);
+    // Rooms with at least this many members get join/leave notices batched every PRESENCE_FLUSH_MS
+    private static final int PRESENCE_BATCH_THRESHOLD = Integer.getInteger("chat.presence.batchThreshold", 50);
+    private static final int PRESENCE_FLUSH_MS = Integer.getInteger("chat.presence.flushMs", 2000);
+    private static final AtomicBoolean presenceFlushPending = new AtomicBoolean(false);
+    private static final int AI_RECALLED_LINES = Integer.getInteger("chat.ai.recalledLines", 4);
+    private static final int AI_RECENT_LINES = Integer.getInteger("chat.ai.recentLines", 2);
+    private static final int WHO_LIMIT = Integer.getInteger("chat.presence.whoLimit", 100);
+    private static final int SEARCH_RESULTS = Integer.getInteger("chat.search.results", 20);
+    // Rooms one connection can be in at the same time
+    private static final int MAX_ROOMS = Integer.getInteger("chat.rooms.maxPerConnection", 32);
 
     public static void main(String[] args) {
         System.setProperty("javax.net.ssl.keyStore", "keystore.jks");
@@ -42,57 +84,100 @@ public class Server {
 
         UserManager.setupUsers();
 
-        // Load existing tokens and user rooms from files
-        loadTokens();
-        loadUserRooms();
+        // Expired sessions are purged as they expire and written out in batches
+        SessionExpiry.start(Server::expireSession, usernames -> {
+            Log.info("session", "Purged " + usernames.size() + " expired sessions");
+            updateTokensFile();
+        }, SESSION_FLUSH_SECONDS);
+
+        // Restore the last snapshot, or fall back to the token and user room files
+        if (!restoreSnapshot()) {
+            loadTokens();
+            loadUserRooms();
+        }
+        Mailbox.load();
+        ContentFilter.load();
+
+        snapshotScheduler.scheduleAtFixedRate(Server::saveSnapshot, SNAPSHOT_INTERVAL_SECONDS, SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+
+        // Join the other server instances, if any are configured
+        Cluster.init(PORT);
 
         try {
             chatRoomsLock.lock();
             try {
-                chatRooms.put("general", new HashMap<>());
+                chatRooms.putIfAbsent("general", new RoomMembers());
             } finally {
                 chatRoomsLock.unlock();
             }
+            refreshDirectory();
 
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-                System.out.println("Server shutting down. Saving user data...");
+                Log.info("server", "Server shutting down. Saving user data...");
                 saveUserRooms();
-                System.out.println("User data saved successfully.");
+                saveSnapshot();
+                Log.info("server", "User data saved successfully.");
+                Log.shutdown();
             }));
 
             SSLServerSocketFactory sslServerSocketFactory = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
             serverSocket = (SSLServerSocket) sslServerSocketFactory.createServerSocket(PORT);
-            System.out.println("SSL Server started on " + HOST + ":" + PORT);
+            Log.info("server", "SSL Server started on " + HOST + ":" + PORT);
             while (true) {
                 SSLSocket clientSocket = (SSLSocket) serverSocket.accept();
-                System.out.println("Client connected: " + clientSocket.getInetAddress());
+                Admission.Rejection rejection = Admission.admit(clientSocket.getInetAddress());
+                if (rejection != null) {
+                    if (Admission.startRejection()) {
+                        Thread.startVirtualThread(() -> reject(clientSocket, rejection));
+                    } else {
+                        // Too many rejections in progress, a hint would cost more than the accept
+                        try {
+                            clientSocket.close();
+                        } catch (IOException e) {}
+                    }
+                    continue;
+                }
+                Log.info("server", "Client connected: " + clientSocket.getInetAddress());
                 Thread.startVirtualThread(() -> handleClient(clientSocket));
 
                 if (clientSocket.isClosed() || !clientSocket.isConnected()) {
-                    System.out.println("Client disconnected: " + clientSocket.getInetAddress());
+                    Log.info("server", "Client disconnected: " + clientSocket.getInetAddress());
                 }
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("server", "Server socket failed", e);
         } finally {
             try {
                 if (serverSocket != null && !serverSocket.isClosed()) {
                     serverSocket.close();
                 }
             } catch (IOException e) {
-                e.printStackTrace();
+                Log.error("server", "Could not close server socket", e);
             }
         }
     }
 
+    // Runs on the connection's own thread as the reader of its ConnectionScope; the scope is closed,
+    // and with it the writer and the timers, before the cleanup in the finally block
     private static void handleClient(Socket clientSocket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true)) {
+        try (ConnectionScope scope = new ConnectionScope(clientSocket);
+            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+            PrintWriter out = openConnection(clientSocket, scope).getWriter()) {
+            // Closes the socket unless the TLS handshake and the login lines arrive in time
+            TimerWheel.Timeout loginDeadline = scope.own(timerWheel.schedule(() -> loginTimedOut(clientSocket),
+                Admission.LOGIN_TIMEOUT_MS, TimeUnit.MILLISECONDS));
+            ClientConnection connection = connections.get(clientSocket);
+            if (clientSocket instanceof SSLSocket sslSocket) {
+                handshake(sslSocket);
+            }
             
             String username = in.readLine();
             
             // Get token string from client
             String tokenString = in.readLine();
+            // Without a token the password follows, as LOGIN:<password> or REGISTER:<password>
+            String credentials = tokenString == null || tokenString.isEmpty() ? in.readLine() : null;
+            loginDeadline.cancel();
 
             Token token;
             boolean isReconnection = false;
@@ -101,53 +186,45 @@ public class Server {
             // Check if this is a reconnection with valid token
             if (tokenString != null && !tokenString.isEmpty()) {
                 token = validateToken(username, tokenString);
-                System.out.println("Validating token for " + username + ": " + (token != null ? "VALID" : "INVALID"));
+                Log.debug("session", "Validating token for " + username + ": " + (token != null ? "VALID" : "INVALID"));
                 
                 if (token != null) {
                     isReconnection = true;
-                    System.out.println("Successful reconnection for " + username + " with token: " + token.getTokenString());
-                    
-                    // Get the user's current room if reconnecting
-                    userRoomsLock.lock();
-                    try {
-                        if (userCurrentRooms.containsKey(username)) {
-                            currentRoom = userCurrentRooms.get(username);
-                        }
-                    } finally {
-                        userRoomsLock.unlock();
-                    }
+                    Log.debug("session", "Successful reconnection for " + username + " with token: " + token.getTokenString());
+                    token = refreshSession(token);
+                    out.println("AUTH_OK:" + (isAdmin(username) ? "admin" : "user"));
+                    out.println("TOKEN:" + token.getTokenString());
                 } else {
                     // Invalid/expired token
-                    System.out.println("Expired or invalid token for " + username);
-                    out.println("Your session has expired. Please login again.");
+                    Log.info("session", "Expired or invalid token for " + username);
+                    out.println("AUTH_FAIL:Your session has expired. Please login again.");
                     clientSocket.close();
                     return;
                 }
             } else {
-                // New connection or no token provided
+                // New connection, checked against the stored password
+                String failure = authenticate(username, credentials);
+                if (failure != null) {
+                    Log.info("session", "Authentication failed for " + username + ": " + failure);
+                    out.println("AUTH_FAIL:" + failure);
+                    clientSocket.close();
+                    return;
+                }
+                out.println("AUTH_OK:" + (isAdmin(username) ? "admin" : "user"));
                 User user = UserManager.getUserByUsername(username);
-                if (user == null || user.getToken() == null) {
+                if (user == null || user.getToken() == null || Token.verify(user.getToken().getTokenString()) == null) {
                     // Generate new token for first-time connection
                     token = Token.generateToken(username);
-                    userTokensLock.lock();
-                    try {
-                        userTokens.put(username, token);
-                    } finally {
-                        userTokensLock.unlock();
-                    }
-                    System.out.println("Generated new token for " + username + ": " + token.getTokenString());
-                    
-                    User currentUser = UserManager.getUserByUsername(username);
-                    if (currentUser != null) {
-                        currentUser.setToken(token);
-                    }
+                    registerSession(token);
+                    Cluster.sessionUpdated(token);
+                    Log.debug("session", "Generated new token for " + username + ": " + token.getTokenString());
                     
                     // Save the new token to file
                     saveToken(token);
                 } else {
                     // Use existing token
                     token = user.getToken();
-                    System.out.println("Using existing token for " + username + ": " + token.getTokenString());
+                    Log.debug("session", "Using existing token for " + username + ": " + token.getTokenString());
                 }
                 // Send token to client for future reconnections
                 out.println("TOKEN:" + token.getTokenString());
@@ -156,7 +233,7 @@ public class Server {
             // Update user tracking
             clientUsernamesLock.lock();
             try {
-                clientUsernames.put(clientSocket, username);
+                bindUser(clientSocket, username);
             } finally {
                 clientUsernamesLock.unlock();
             }
@@ -165,65 +242,57 @@ public class Server {
             chatRoomsLock.lock();
 
             try {
-                // If reconnecting, place in last known room
+                // If reconnecting, place in every room the user followed
                 if (isReconnection) {
-                    // Get the user's current room if reconnecting
+                    List<String> savedRooms;
                     userRoomsLock.lock();
                     try {
-                        if (userCurrentRooms.containsKey(username)) {
-                            currentRoom = userCurrentRooms.get(username);
-                            chatRoomsLock.lock();
-                            try {
-                                if (!chatRooms.containsKey(currentRoom)) {
-                                    if (!currentRoom.equals("general") && !aiRoomPrompts.containsKey(currentRoom)) {
-                                        chatRooms.put(currentRoom, new HashMap<>());
-                                        System.out.println("Recreated room: " + currentRoom);
-                                    } else {
-                                        currentRoom = "general";
-                                        userCurrentRooms.put(username, "general");
-                                    }
-                                }
-
-                                chatRooms.get(currentRoom).put(clientSocket, username);
-                
-                                for (Socket socket : chatRooms.get(currentRoom).keySet()) {
-                                    if (!socket.equals(clientSocket)) {
-                                        try {
-                                            new PrintWriter(socket.getOutputStream(), true)
-                                                .println(username + " has reconnected to the room.");
-                                        } catch (IOException e) {}
-                                    }
-                                }
-                                
-                                out.println("You are now reconnected to room: " + currentRoom);
-                            } finally {
-                                chatRoomsLock.unlock();
-                            }
-                        } else {
-                            currentRoom = "general";
-                        }
+                        savedRooms = subscriptions.rooms(username);
                     } finally {
                         userRoomsLock.unlock();
                     }
+                    for (String roomName : savedRooms) {
+                        if (!chatRooms.containsKey(roomName)) {
+                            if (roomName.equals("general") || aiRoomPrompts.containsKey(roomName)) {
+                                continue;
+                            }
+                            chatRooms.put(roomName, new RoomMembers());
+                            directoryChanged();
+                            Log.info("room", "Recreated room: " + roomName);
+                        }
+                        if (connection.getRooms().length >= MAX_ROOMS) {
+                            break;
+                        }
+                        addRoomMember(roomName, clientSocket, username);
+                        announcePresence(roomName, username, Presence.Change.RECONNECTED, clientSocket);
+                    }
+                    if (connection.getRooms().length == 0) {
+                        addRoomMember("general", clientSocket, username);
+                    }
+                    // The room the user was talking in, unless it is gone
+                    RoomMembers savedRoom = savedRooms.isEmpty() ? null : chatRooms.get(savedRooms.get(0));
+                    currentRoom = savedRoom != null && savedRoom.contains(connection)
+                        ? savedRooms.get(0) : Symbols.ROOMS.name(connection.getRooms()[0]);
+                    List<String> rooms = roomsChanged(username, connection, currentRoom, out, false);
+                    out.println("You are now reconnected to room: " + currentRoom);
+                    if (rooms.size() > 1) {
+                        out.println("You are also in: " + String.join(", ", rooms.subList(1, rooms.size())));
+                    }
                 } else {
                     // New connection - place in general room
-                    chatRooms.get("general").put(clientSocket, username);
-                    
-                    // Update current room tracking
-                    userRoomsLock.lock();
-                    try {
-                        userCurrentRooms.put(username, "general");
-                    } finally {
-                        userRoomsLock.unlock();
-                    }
+                    addRoomMember("general", clientSocket, username);
+                    roomsChanged(username, connection, "general", out, false);
                     out.println("Welcome to the server, " + username + "!");
                     out.println("You are in the 'general' room by default.");
                     out.println("List of commands:");
                     out.println("/create <room_name> - Create a new chat room");
-                    out.println("/join <room_name> - Join an existing chat room");
-                    out.println("/leave - Leave the current chat room and return to 'general'");
-                    out.println("/rooms - List all available chat rooms");
-                    out.println("/users - List all user on the current room");
+                    out.println("/join <room_name> - Join a chat room and send your messages there, you stay in the other rooms");
+                    out.println("/leave [room_name] - Leave the current chat room or the given one");
+                    out.println("/rooms [prefix*] [popular] [page <n>] - List the available chat rooms");
+                    out.println("/users [prefix*] [page <n>] - List the users in the current room");
+                    out.println("/msg <username> <message> - Send a private message to a user");
+                    out.println("/who [room] - Show who is online in the current room or the given one");
+                    out.println("/summary [room] - Catch up on an AI room with a summary of its conversation");
                     out.println("/help - Show this help message");
                     out.println("/status - Show the current status of the client");
                     out.println("/disconnect - Disconnect from the server but keep the session active for reconnection");
@@ -237,6 +306,10 @@ public class Server {
                         out.println("/promote <username> - Promote a user to admin role");
                         out.println("/demote <username> - Demote an admin to regular user");
                         out.println("/stats - Show server statistics and active connections");
+                            out.println("/search <terms> [room] - Search the chat history, from:<username> matches an author");
+                            out.println("/block <term> [reject] - Mask a word in every message, or reject messages containing it");
+                            out.println("/unblock <term> - Remove a blocked term");
+                            out.println("/blocked - List the blocked terms");
                     } else {
                         out.println("You are a regular user.");
                     }
@@ -245,8 +318,21 @@ public class Server {
                 chatRoomsLock.unlock();
             }
 
+            // Hand over the private messages received while the user was away
+            Cluster.userOnline(username);
+            String mailboxNode = Cluster.mailboxNode(username);
+            if (mailboxNode.equals(Cluster.getNodeId())) {
+                Mailbox.deliver(username, batch -> sendMailbox(connection, batch));
+            } else {
+                Cluster.requestMailbox(mailboxNode, username);
+            }
+
             String inputLine;
             while ((inputLine = in.readLine()) != null) {
+                connection.touch();
+                if (inputLine.startsWith("PONG:")) {
+                    continue; // Heartbeat reply, the connection was already marked alive
+                }
                 // Handle commands
                 if (inputLine.startsWith("/")) {
                     if (inputLine.startsWith("/join ")) {
@@ -254,74 +340,67 @@ public class Server {
                         
                         chatRoomsLock.lock();
                         try {
-                            if (!chatRooms.containsKey(roomName)) {
+                            RoomMembers room = chatRooms.get(roomName);
+                            if (room == null) {
                                 out.println("Error: Chat room '" + roomName + "' does not exist.");
                                 continue; 
                             }
-                            
-                            if (chatRooms.containsKey(currentRoom)) {
-                                chatRooms.get(currentRoom).remove(clientSocket);
+                            if (room.contains(connection)) {
+                                // Already in it, only the messages change room
+                                currentRoom = roomName;
+                                roomsChanged(username, connection, currentRoom, out, true);
+                                out.println("Your messages now go to the room: " + roomName);
+                                continue;
                             }
-                            
-                            chatRooms.get(roomName).put(clientSocket, username);
-                            
-                            userRoomsLock.lock();
-                            try {
-                                userCurrentRooms.put(username, roomName);
-                                saveUserRooms();
-                            } finally {
-                                userRoomsLock.unlock();
+                            if (connection.getRooms().length >= MAX_ROOMS) {
+                                out.println("You are already in " + MAX_ROOMS + " rooms, leave one with /leave <room_name> first.");
+                                continue;
                             }
                             
+                            addRoomMember(roomName, clientSocket, username);
                             currentRoom = roomName;
+                            roomsChanged(username, connection, currentRoom, out, true);
                             out.println("You joined the room: " + roomName);
                             
-                            for (Socket socket : chatRooms.get(roomName).keySet()) {
-                                if (!socket.equals(clientSocket)) {
-                                    try {
-                                        new PrintWriter(socket.getOutputStream(), true)
-                                            .println(username + " has joined the room.");
-                                    } catch (IOException e) {}
-                                }
-                            }
+                            announcePresence(roomName, username, Presence.Change.JOINED, clientSocket);
                         } finally {
                             chatRoomsLock.unlock();
                         }
                     }
-                    else if (inputLine.equals("/leave")) {
+                    else if (inputLine.equals("/leave") || inputLine.startsWith("/leave ")) {
+                        String roomName = inputLine.substring(6).trim();
+                        if (roomName.isEmpty()) {
+                            roomName = currentRoom;
+                        }
                         chatRoomsLock.lock();
                         try {
-                            // Notify other users in the current room
-                            if (chatRooms.containsKey(currentRoom)) {
-                                for (Socket socket : chatRooms.get(currentRoom).keySet()) {
-                                    if (!socket.equals(clientSocket)) {
-                                        try {
-                                            new PrintWriter(socket.getOutputStream(), true)
-                                                .println(username + " has left the room.");
-                                        } catch (IOException e) {}
-                                    }
-                                }
-                                // Remove user from current room
-                                chatRooms.get(currentRoom).remove(clientSocket);
+                            RoomMembers room = chatRooms.get(roomName);
+                            if (room == null || !room.contains(connection)) {
+                                out.println("You are not in the room '" + roomName + "'.");
+                                continue;
                             }
-                            
-                            // Add user to general room
-                            if (!chatRooms.containsKey("general")) {
-                                chatRooms.put("general", new HashMap<>());
+                            if (roomName.equals("general") && connection.getRooms().length == 1) {
+                                out.println("You are only in 'general', there is no room to leave.");
+                                continue;
                             }
-                            chatRooms.get("general").put(clientSocket, username);
+                            // Notify other users in the room
+                            announcePresence(roomName, username, Presence.Change.LEFT, clientSocket);
+                            removeRoomMember(roomName, clientSocket);
                             
-                            userRoomsLock.lock();
-                            try {
-                                userCurrentRooms.put(username, "general");
-                                saveUserRooms();
-                            } finally {
-                                userRoomsLock.unlock();
+                            if (roomName.equals(currentRoom)) {
+                                // Messages go to the next room the user is in, or back to general
+                                if (connection.getRooms().length == 0) {
+                                    if (!chatRooms.containsKey("general")) {
+                                        chatRooms.put("general", new RoomMembers());
+                                    }
+                                    addRoomMember("general", clientSocket, username);
+                                }
+                                currentRoom = Symbols.ROOMS.name(connection.getRooms()[0]);
                             }
-                            currentRoom = "general";
+                            roomsChanged(username, connection, currentRoom, out, true);
                             
                             // Notify the user about room change
-                            out.println("You have left the room and returned to 'general'.");
+                            out.println("You have left the room '" + roomName + "', your messages go to '" + currentRoom + "'.");
                         } finally {
                             chatRoomsLock.unlock();
                         }
@@ -339,56 +418,44 @@ public class Server {
                                 } else {
                                     String aiRoomName = parts[1];
                                     String prompt = parts[2];
-                                    chatRooms.put(aiRoomName, new HashMap<>());
+                                    chatRooms.put(aiRoomName, new RoomMembers());
                                     aiRoomPrompts.put(aiRoomName, prompt);
                                     aiRoomHistory.put(aiRoomName, new java.util.ArrayList<>());
+                                    Cluster.roomCreated(aiRoomName, prompt);
+                                    directoryChanged();
                                     out.println("AI chat room '" + aiRoomName + "' created with prompt: " + prompt);
                                 }
                             } else {
-                                chatRooms.put(roomSpec, new HashMap<>());
+                                chatRooms.put(roomSpec, new RoomMembers());
+                                Cluster.roomCreated(roomSpec, null);
+                                directoryChanged();
                                 out.println("Chat room '" + roomSpec + "' created.");
                             }
                         } finally {
                             chatRoomsLock.unlock();
                         }
                     }
-                    else if (inputLine.equals("/rooms")) {
-                        chatRoomsLock.lock();
-                        try {
-                            out.println("Available chat rooms:");
-                            for (String room : chatRooms.keySet()) {
-                                out.println("- " + room);
-                            }
-                        } finally {
-                            chatRoomsLock.unlock();
-                        }
+                    else if (inputLine.equals("/rooms") || inputLine.startsWith("/rooms ")) {
+                        listRooms(inputLine.substring(6).trim(), out);
                     }
-                    else if (inputLine.equals("/users")) {
-                        chatRoomsLock.lock();
-                        try {
-                            out.println("Users in the current room (" + currentRoom + "):");
-                            for (String user : chatRooms.get(currentRoom).values()) {
-                                out.println("- " + user);
-                            }
-                        } finally {
-                            chatRoomsLock.unlock();
-                        }
+                    else if (inputLine.equals("/who") || inputLine.startsWith("/who ")) {
+                        String roomName = inputLine.length() > 4 ? inputLine.substring(5).trim() : "";
+                        listOnline(roomName.isEmpty() ? currentRoom : roomName, out);
+                    }
+                    else if (inputLine.equals("/summary") || inputLine.startsWith("/summary ")) {
+                        String roomName = inputLine.substring(8).trim();
+                        showSummary(roomName.isEmpty() ? currentRoom : roomName, out);
+                    }
+                    else if (inputLine.equals("/users") || inputLine.startsWith("/users ")) {
+                        listUsers(currentRoom, inputLine.substring(6).trim(), out);
                     }
                     else if (inputLine.equals("/disconnect")) {
                         chatRoomsLock.lock();
                         try {
-                            if (chatRooms.containsKey(currentRoom)) {
-                                for (Socket socket : chatRooms.get(currentRoom).keySet()) {
-                                    if (!socket.equals(clientSocket)) {
-                                        try {
-                                            new PrintWriter(socket.getOutputStream(), true)
-                                                .println(username + " has disconnected.");
-                                        } catch (IOException e) {}
-                                    }
-                                }
-                                
-                                chatRooms.get(currentRoom).remove(clientSocket);
+                            for (int room : connection.getRooms()) {
+                                announcePresence(Symbols.ROOMS.name(room), username, Presence.Change.DISCONNECTED, clientSocket);
                             }
+                            removeFromAllRooms(clientSocket);
                         } finally {
                             chatRoomsLock.unlock();
                         }
@@ -402,10 +469,13 @@ public class Server {
                     else if (inputLine.equals("/help")) {
                         out.println("List of commands:");
                         out.println("/create <room_name> - Create a new chat room");
-                        out.println("/join <room_name> - Join an existing chat room");
-                        out.println("/leave - Leave the current chat room and return to 'general'");
-                        out.println("/rooms - List all available chat rooms");
-                        out.println("/users - List all users in the current room");
+                        out.println("/join <room_name> - Join a chat room and send your messages there, you stay in the other rooms");
+                        out.println("/leave [room_name] - Leave the current chat room or the given one");
+                        out.println("/rooms [prefix*] [popular] [page <n>] - List the available chat rooms");
+                        out.println("/users [prefix*] [page <n>] - List the users in the current room");
+                        out.println("/msg <username> <message> - Send a private message to a user");
+                        out.println("/who [room] - Show who is online in the current room or the given one");
+                        out.println("/summary [room] - Catch up on an AI room with a summary of its conversation");
                         out.println("/help - Show this help message");
                         out.println("/disconnect - Disconnect from the server but keep the session active for reconnection");
                         out.println("/exit - Exit the client and terminate the session");
@@ -418,6 +488,10 @@ public class Server {
                             out.println("/promote <username> - Promote a user to admin role");
                             out.println("/demote <username> - Demote an admin to regular user");
                             out.println("/stats - Show server statistics and active connections");
+                            out.println("/search <terms> [room] - Search the chat history, from:<username> matches an author");
+                            out.println("/block <term> [reject] - Mask a word in every message, or reject messages containing it");
+                            out.println("/unblock <term> - Remove a blocked term");
+                            out.println("/blocked - List the blocked terms");
                         } else {
                             out.println("You are a regular user.");
                         }
@@ -429,6 +503,59 @@ public class Server {
                             out.println("You do not have permission to view server statistics.");
                         }
                     }
+                    else if (inputLine.startsWith("/search ")) {
+                        if (isAdmin(username)) {
+                            searchHistory(inputLine.substring(8).trim(), out);
+                        } else {
+                            out.println("You do not have permission to search the chat history.");
+                        }
+                    }
+                    else if (inputLine.startsWith("/block ")) {
+                        if (isAdmin(username)) {
+                            blockTerm(inputLine.substring(7).trim(), out);
+                        } else {
+                            out.println("You do not have permission to block terms.");
+                        }
+                    }
+                    else if (inputLine.startsWith("/unblock ")) {
+                        if (isAdmin(username)) {
+                            String term = inputLine.substring(9).trim();
+                            if (ContentFilter.unblock(term)) {
+                                Cluster.filterChanged(ContentFilter.list());
+                                out.println("'" + term + "' is no longer blocked.");
+                            } else {
+                                out.println("'" + term + "' is not blocked.");
+                            }
+                        } else {
+                            out.println("You do not have permission to unblock terms.");
+                        }
+                    }
+                    else if (inputLine.equals("/blocked")) {
+                        if (isAdmin(username)) {
+                            listBlockedTerms(out);
+                        } else {
+                            out.println("You do not have permission to list blocked terms.");
+                        }
+                    }
+                    else if (inputLine.startsWith("/msg ")) {
+                        String[] parts = inputLine.substring(5).trim().split("\\s+", 2);
+                        if (parts.length < 2 || parts[1].isBlank()) {
+                            out.println("Usage: /msg <username> <message>");
+                        } else if (UserManager.isUserMuted(username)) {
+                            out.println("You are currently muted and cannot send messages.");
+                        } else if (UserManager.getUserByUsername(parts[0]) == null) {
+                            out.println("User '" + parts[0] + "' does not exist.");
+                        } else if (!RateLimiter.tryAcquire(username, "@" + parts[0], false)) {
+                            out.println("You are sending messages too fast. Your message was not delivered, please slow down.");
+                        } else {
+                            ContentFilter.Result filtered = ContentFilter.apply(parts[1].trim());
+                            if (filtered.rejected()) {
+                                out.println("Your message was not delivered because it contains a blocked term.");
+                            } else {
+                                sendDirectMessage(username, parts[0], filtered.text(), out);
+                            }
+                        }
+                    }
 
                     // Admin commands
                     else if (inputLine.startsWith("/ban ")) {
@@ -490,98 +617,125 @@ public class Server {
                     }
                 }
                 else {
+                    ChatEvents.Message event = new ChatEvents.Message();
+                    event.begin();
                     boolean isMuted = UserManager.isUserMuted(username);
                     if (isMuted) {
                         out.println("You are currently muted and cannot send messages.");
                         continue;
                     }
-                    System.out.println(currentRoom + "/" + username + ": " + inputLine);
+                    if (!RateLimiter.tryAcquire(username, currentRoom, aiRoomPrompts.containsKey(currentRoom))) {
+                        out.println("You are sending messages too fast. Your message was not delivered, please slow down.");
+                        continue;
+                    }
+                    ContentFilter.Result filtered = ContentFilter.apply(inputLine);
+                    if (filtered.rejected()) {
+                        out.println("Your message was not delivered because it contains a blocked term.");
+                        continue;
+                    }
+                    String text = filtered.text();
+                    Log.chat(currentRoom, username, text);
+                    SearchIndex.add(currentRoom, username, text);
 
+                    String chatLine = username + ": " + text;
+                    boolean aiRoom = aiRoomPrompts.containsKey(currentRoom);
+                    boolean aiShed = false;
+                    long lockStart = System.nanoTime();
                     chatRoomsLock.lock();
+                    event.lockWait = System.nanoTime() - lockStart;
                     try {
-                        for (Socket socket : chatRooms.get(currentRoom).keySet()) {
-                            if (!socket.equals(clientSocket)) {
-                                final String msgUsername = username;
-                                final String msgInputLine = inputLine;
-                                Thread.startVirtualThread(() -> {
-                                    try {
-                                        new PrintWriter(socket.getOutputStream(), true)
-                                            .println(msgUsername + ": " + msgInputLine);
-                                    } catch (Exception e) {
-                                        System.out.println("Error sending message to " + socket.getInetAddress());
-                                        e.printStackTrace();
-                                    }
-                                });
-                            }
-                        }
-                        if (aiRoomPrompts.containsKey(currentRoom)) {
-    
-                            aiRoomBuffer.computeIfAbsent(currentRoom, k -> new ArrayList<>());
-
-                            List<String> buffer = aiRoomBuffer.get(currentRoom);
-                            synchronized (buffer) {
-                                buffer.add(username + ": " + inputLine);
-                            }
-
-                            // If bot is not busy, start processing
-                            aiRoomBotBusy.putIfAbsent(currentRoom, new AtomicBoolean(false));
-                            AtomicBoolean botBusy = aiRoomBotBusy.get(currentRoom);
-
-                            if (botBusy.compareAndSet(false, true)) {
-                                final String roomForBot = currentRoom;
-                                Thread.startVirtualThread(() -> processAiRoomBuffer(roomForBot));
-                            }
+                        event.recipients = broadcastToRoom(currentRoom, chatLine, clientSocket);
+                        // Only the node owning an AI room runs its bot, other nodes forward to it
+                        if (aiRoom && Cluster.isOwner(currentRoom)) {
+                            aiShed = !bufferAiMessage(currentRoom, chatLine);
                         }
                     } finally {
                         chatRoomsLock.unlock();
                     }
+                    if (aiShed) {
+                        out.println("The server is overloaded, the bot will not answer this message. Please try again in "
+                            + Admission.RETRY_SECONDS + " seconds.");
+                    }
+                    Cluster.publish(currentRoom, chatLine, aiRoom);
+                    event.room = currentRoom;
+                    event.length = chatLine.length();
+                    event.commit();
                 }
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.warn("server", "Connection error for " + clientSocket.getInetAddress() + ": " + e.getMessage());
         } finally {
             try {
                 String username;
                 clientUsernamesLock.lock();
                 try {
-                    // Get username before removing from clientUsernames
+                    // Get username before removing from clientUsernames; a reconnection binds the
+                    // username to its new socket, so nothing of this one needs to stay
                     username = clientUsernames.get(clientSocket);
-                    
-                    // IMPORTANT: Don't remove from clientUsernames on disconnect
-                    // This allows proper reconnection with the same username
-                    if (username != null && !clientSocket.isClosed()) {
-                        clientUsernames.put(clientSocket, username);
-                    } else {
-                        clientUsernames.remove(clientSocket);
-                    }
+                    unbindUser(clientSocket);
                 } finally {
                     clientUsernamesLock.unlock();
                 }
                 
                 if (username != null) {
-                    // Note: We do NOT remove the user from userCurrentRooms
+                    // Note: We do NOT remove the user's subscriptions
                     // to maintain their state for reconnection
                     
                     // Also, we don't remove the token in order to allow reconnections
-                    System.out.println(username + " disconnected.");
+                    Log.info("server", username + " disconnected.");
 
                     // We DO remove them from the active room participants
                     chatRoomsLock.lock();
                     try {
-                        for (Map<Socket, String> room : chatRooms.values()) {
-                            room.remove(clientSocket);
-                        }
+                        removeFromAllRooms(clientSocket);
                     } finally {
                         chatRoomsLock.unlock();
                     }
                 }
+                ClientConnection connection = connections.remove(clientSocket);
+                if (connection != null) {
+                    connection.close();
+                    checkReleased(clientSocket, connection);
+                }
+                // Unless the user already reconnected on another socket
+                if (username != null && findLiveConnection(username) == null) {
+                    Cluster.userOffline(username);
+                }
                 clientSocket.close();
             } catch (IOException e) {
-                System.out.println("Error in client cleanup: " + e.getMessage());
+                Log.warn("server", "Error in client cleanup: " + e.getMessage());
+            } finally {
+                Admission.release(clientSocket.getInetAddress());
             }
         }
     }
 
+    private static void loginTimedOut(Socket socket) {
+        Admission.loginTimedOut();
+        Log.info("server", "Closing " + socket.getInetAddress() + ", no login within " + Admission.LOGIN_TIMEOUT_MS + " ms");
+        try {
+            socket.close();
+        } catch (IOException e) {}
+    }
+
+    // Tells a client the connection was not admitted and when to try again, without giving it a handler
+    private static void reject(SSLSocket socket, Admission.Rejection rejection) {
+        Log.debug("server", "Rejected " + socket.getInetAddress() + ": " + rejection.message);
+        try (socket) {
+            socket.setSoTimeout(2000);
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            out.println("RETRY:" + Admission.RETRY_SECONDS + ":" + rejection.message + ", please try again in "
+                + Admission.RETRY_SECONDS + " seconds.");
+            // Reads the login lines the client sends right away, so closing does not reset the connection
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            for (int i = 0; i < 3 && in.readLine() != null; i++) {}
+        } catch (IOException e) {
+            // Gone or too slow, nothing more to do
+        } finally {
+            Admission.rejectionSent();
+        }
+    }
+
     // Load tokens from file
     private static void loadTokens() {
         File tokenFile = new File(TOKENS_FILE);
@@ -605,38 +759,30 @@ public class Server {
                 if (parts.length == 3) {
                     String username = parts[0];
                     String tokenString = parts[1];
-                    Long expiration = Long.parseLong(parts[2]);
+                    long expiration = Long.parseLong(parts[2]);
                     
                     Token token = new Token(username, tokenString, expiration);
                     
-                    // Only load tokens that haven't expired yet
-                    if (!token.isExpired()) {
-                        userTokensLock.lock();
-                        try {
-                            userTokens.put(username, token);
-                            // Also update the user object
-                            User user = UserManager.getUserByUsername(username);
-                            if (user != null) {
-                                user.setToken(token);
-                            }
-                            System.out.println("Loaded token for " + username + ": " + tokenString);
-                        } finally {
-                            userTokensLock.unlock();
-                        }
+                    // Only load tokens that haven't expired yet and carry a valid signature
+                    if (!token.isExpired() && Token.verify(tokenString) != null) {
+                        // Also updates the user object and schedules the token's expiry
+                        registerSession(token);
+                        Log.debug("session", "Loaded token for " + username + ": " + tokenString);
                     }
                     else {
-                        System.out.println("WARNING: Token for user " + username + " has expired.");
+                        Log.warn("session", "Token for user " + username + " has expired or is invalid.");
                     }
                 }
             }
-            System.out.println("Loaded " + userTokens.size() + " active tokens");
+            Log.info("session", "Loaded " + userTokens.size() + " active tokens");
         } catch (IOException e) {
-            System.err.println("Error loading tokens: " + e.getMessage());
+            Log.error("persistence", "Error loading tokens: " + e.getMessage());
         }
     }
 
     // Save token to file
     private static void saveToken(Token token) {
+        ChatEvents.Persistence event = ChatEvents.Persistence.start("saveToken", TOKENS_FILE);
         try {
             // Create directory if it doesn't exist
             File tokenDir = new File("db");
@@ -652,17 +798,23 @@ public class Server {
                     writer.write("username,token,expiration\n");
                 }
                 
+                Token.Signed signed = token.getSigned();
                 writer.write(token.getUsername() + "," + 
-                             token.getTokenString() + "," + 
-                             token.getExpirationTime() + "\n");
+                             signed.token() + "," + 
+                             signed.expirationTime() + "\n");
             }
+            event.records = 1;
+            event.success = true;
         } catch (IOException e) {
-            System.err.println("Error saving token: " + e.getMessage());
+            Log.error("persistence", "Error saving token: " + e.getMessage());
+        } finally {
+            event.commit();
         }
     }
 
     // Method to update/rewrite all tokens to file (for refreshed tokens)
     private static void updateTokensFile() {
+        ChatEvents.Persistence event = ChatEvents.Persistence.start("updateTokensFile", TOKENS_FILE);
         userTokensLock.lock();
         try {
             // Create directory if it doesn't exist
@@ -677,105 +829,178 @@ public class Server {
                 
                 // Write all tokens
                 for (Token token : userTokens.values()) {
-                    if (!token.isExpired()) {
+                    Token.Signed signed = token.getSigned();
+                    if (signed.expirationTime() >= Instant.now().getEpochSecond()) {
                         writer.write(token.getUsername() + "," + 
-                                     token.getTokenString() + "," + 
-                                     token.getExpirationTime() + "\n");
+                                     signed.token() + "," + 
+                                     signed.expirationTime() + "\n");
+                        event.records++;
                     }
                 }
             }
+            event.success = true;
         } catch (IOException e) {
-            System.err.println("Error updating tokens file: " + e.getMessage());
+            Log.error("persistence", "Error updating tokens file: " + e.getMessage());
         } finally {
             userTokensLock.unlock();
+            event.commit();
+        }
+    }
+
+    // Returns null when the user may connect, otherwise the reason to show them
+    private static String authenticate(String username, String credentials) {
+        if (username == null || credentials == null) {
+            return "Missing credentials.";
+        }
+        Authenticator.Outcome outcome;
+        if (credentials.startsWith("LOGIN:")) {
+            outcome = Authenticator.login(username, credentials.substring(6));
+        } else if (credentials.startsWith("REGISTER:")) {
+            outcome = Authenticator.register(username, credentials.substring(9));
+        } else {
+            return "Missing credentials.";
         }
+        return switch (outcome) {
+            case OK -> null;
+            case UNKNOWN_USER -> "User not found.";
+            case WRONG_PASSWORD -> "Incorrect password.";
+            case USERNAME_TAKEN -> "Username already exists.";
+            case INVALID -> "Usernames are 1 to 32 letters, digits, '.', '_' or '-', and the password cannot be empty.";
+            case BUSY -> "The server is busy, please try again in a moment.";
+            case ERROR -> "The server could not complete the request, please try again later.";
+        };
     }
 
     private static Token validateToken(String username, String tokenString) {
-        // Check if token exists and is valid for this user
+        // Signature, expiration and revocation are all checked from the token itself,
+        // so validation needs no lock, no file access and works the same on every node
+        Token token = Token.verify(tokenString);
+        if (token == null || !token.getUsername().equals(username)) {
+            return null; // Forged, expired, revoked or issued to someone else
+        }
+        return token;
+    }
+
+    // Extends a reconnected session; the session's Token is refreshed in place
+    private static Token refreshSession(Token verified) {
+        Token session;
         userTokensLock.lock();
         try {
-            Token token = userTokens.get(username);
-            if (token != null && tokenString.equals(token.getTokenString())) {
-                if (token.isExpired()) {
-                    // Token exists but has expired
-                    userTokens.remove(username);
-                    return null;
-                }
-                // Refresh token expiration time when used for reconnection
-                token = Token.refreshToken(token);
-                userTokens.put(username, token);
-                
-                // Update token in file system
-                updateTokensFile();
-                
-                return token;
-            }
+            session = userTokens.get(verified.getUsername());
         } finally {
             userTokensLock.unlock();
         }
-        return null; // Token doesn't exist or doesn't match
+        if (session == null) {
+            session = verified;
+            session.refresh();
+            registerSession(session);
+        } else {
+            session.refresh();
+        }
+        Cluster.sessionUpdated(session);
+        return session;
     }
 
-    private static boolean isAdmin(String username) {
-        return UserManager.isAdmin(username);
+    // Makes a token the user's active session and schedules its expiry
+    private static void registerSession(Token token) {
+        Token previous;
+        userTokensLock.lock();
+        try {
+            previous = userTokens.put(token.getUsername(), token);
+        } finally {
+            userTokensLock.unlock();
+        }
+        if (previous != null && previous != token) {
+            SessionExpiry.untrack(previous);
+        }
+        User user = UserManager.getUserByUsername(token.getUsername());
+        if (user != null) {
+            user.setToken(token);
+        }
+        SessionExpiry.track(token);
     }
 
-    private static void banUser(String userToBan, String adminUsername, PrintWriter adminOut) {
-        Socket userSocket = null;
-        clientUsernamesLock.lock();
+    private static void endSession(String username) {
+        Token removed;
+        userTokensLock.lock();
         try {
-            for (Map.Entry<Socket, String> entry : clientUsernames.entrySet()) {
-                if (entry.getValue().equals(userToBan)) {
-                    userSocket = entry.getKey();
-                    break;
-                }
-            }
+            removed = userTokens.remove(username);
         } finally {
-            clientUsernamesLock.unlock();
+            userTokensLock.unlock();
         }
-        if (userSocket == null) {
-            adminOut.println("User " + userToBan + " not found on server.");
-            return;
+        if (removed != null) {
+            SessionExpiry.untrack(removed);
         }
+        User user = UserManager.getUserByUsername(username);
+        if (user != null) {
+            user.setToken(null);
+        }
+    }
+
+    // Called by SessionExpiry on the timer thread when a session's token runs out
+    private static void expireSession(Token token) {
+        userTokensLock.lock();
         try {
-            new PrintWriter(userSocket.getOutputStream(), true)
-                .println("BANNED:You have been banned from the server by admin " + adminUsername);
-            
-            // Remove user from token list
-            userTokensLock.lock();
-            try {
-                userTokens.remove(userToBan);
-                updateTokensFile(); // Update the tokens file after banning
-            } finally {
-                userTokensLock.unlock();
-            }
+            userTokens.remove(token.getUsername(), token);
+        } finally {
+            userTokensLock.unlock();
+        }
+        User user = UserManager.getUserByUsername(token.getUsername());
+        if (user != null && user.getToken() == token) {
+            user.setToken(null);
+        }
+        Log.debug("session", "Session of " + token.getUsername() + " expired");
+    }
 
-            // Remove user from chat rooms
-            chatRoomsLock.lock();
-            try {
-                for (Map<Socket, String> room : chatRooms.values()) {
-                    room.remove(userSocket);
-                }
-            } finally {
-                chatRoomsLock.unlock();
-            }
+    private static boolean isAdmin(String username) {
+        return UserManager.isAdmin(username);
+    }
 
-            // Remove user from clientUsernames
-            clientUsernamesLock.lock();
-            try {
-                clientUsernames.remove(userSocket);
-            } finally {
-                clientUsernamesLock.unlock();
+    private static void banUser(String userToBan, String adminUsername, PrintWriter adminOut) {
+        Socket userSocket = findUserSocketByUsername(userToBan);
+        if (userSocket == null) {
+            if (Cluster.isEnabled()) {
+                // The user may be connected to another node
+                long revokedUntil = Token.revoke(userToBan);
+                Authenticator.forget(userToBan);
+                endSession(userToBan);
+                updateTokensFile();
+                snapshotSoon();
+                Cluster.sessionRevoked(userToBan, revokedUntil);
+                Cluster.kick(userToBan, "BANNED:You have been banned from the server by admin " + adminUsername);
+                adminOut.println("Ban for " + userToBan + " sent to the other cluster nodes.");
+            } else {
+                adminOut.println("User " + userToBan + " not found on server.");
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            return;
         }
+        sendLine(userSocket, "BANNED:You have been banned from the server by admin " + adminUsername);
+        
+        // Revoke the user's signed tokens and remove them from the token list
+        long revokedUntil = Token.revoke(userToBan);
+        Authenticator.forget(userToBan);
+        endSession(userToBan);
+        updateTokensFile(); // Update the tokens file after banning
+        snapshotSoon(); // The revocation must survive a restart
+        Cluster.sessionRevoked(userToBan, revokedUntil);
+
+        // Remove user from chat rooms
+        chatRoomsLock.lock();
         try {
-            userSocket.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            removeFromAllRooms(userSocket);
+        } finally {
+            chatRoomsLock.unlock();
+        }
+
+        // Remove user from clientUsernames
+        clientUsernamesLock.lock();
+        try {
+            unbindUser(userSocket);
+        } finally {
+            clientUsernamesLock.unlock();
         }
+        // The BANNED line is already on the control lane, the socket closes once it is written
+        closeAfterControl(userSocket);
         adminOut.println("User " + userToBan + " has been banned from the server.");
     }
 
@@ -795,15 +1020,11 @@ public class Server {
         }
 
         UserManager.muteUser(userToMuteString);
+        Cluster.userStateChanged(userToMuteString, "muted");
         adminOut.println("User " + userToMuteString + " has been muted.");
         Socket userSocket = findUserSocketByUsername(userToMuteString);
         if (userSocket != null) {
-            try {
-                new PrintWriter(userSocket.getOutputStream(), true)
-                    .println("You have been muted by admin " + adminUsername);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            sendLine(userSocket, "You have been muted by admin " + adminUsername);
         }
     }
 
@@ -819,15 +1040,11 @@ public class Server {
         }
         if (UserManager.isUserMuted(userToUnmute)) {
             UserManager.unmuteUser(userToUnmute);
+            Cluster.userStateChanged(userToUnmute, "unmuted");
             adminOut.println("User " + userToUnmute + " has been unmuted.");
             Socket userSocket = findUserSocketByUsername(userToUnmute);
             if (userSocket != null) {
-                try {
-                    new PrintWriter(userSocket.getOutputStream(), true)
-                        .println("You have been unmuted by admin " + adminUsername);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                sendLine(userSocket, "You have been unmuted by admin " + adminUsername);
             }
         } else {
             adminOut.println("User " + userToUnmute + " is not muted.");
@@ -840,32 +1057,24 @@ public class Server {
             return;
         }
         UserManager.promoteToAdmin(userToPromote);
+        Cluster.userStateChanged(userToPromote, "admin");
         adminOut.println("User " + userToPromote + " has been promoted to admin by " + adminUsername + ".");
         Socket userSocket = findUserSocketByUsername(userToPromote);
         if (userSocket != null) {
-            try {
-                PrintWriter userOut = new PrintWriter(userSocket.getOutputStream(), true);
-                userOut.println("ROLE_UPDATE:admin");
-                userOut.println("You have been promoted to admin by " + adminUsername);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            sendLine(userSocket, "ROLE_UPDATE:admin");
+            sendLine(userSocket, "You have been promoted to admin by " + adminUsername);
         }
     }
 
     private static void demoteUser(String userToDemote, String adminUsername, PrintWriter adminOut) {
         if (UserManager.isAdmin(userToDemote)) {
             UserManager.demoteToUser(userToDemote);
+            Cluster.userStateChanged(userToDemote, "user");
             adminOut.println("User " + userToDemote + " has been demoted to regular user.");
             Socket userSocket = findUserSocketByUsername(userToDemote);
             if (userSocket != null) {
-                try {
-                    PrintWriter userOut = new PrintWriter(userSocket.getOutputStream(), true);
-                    userOut.println("ROLE_UPDATE:user");
-                    userOut.println("You have been demoted to regular user by " + adminUsername);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
+                sendLine(userSocket, "ROLE_UPDATE:user");
+                sendLine(userSocket, "You have been demoted to regular user by " + adminUsername);
             }
         } else {
             adminOut.println("User " + userToDemote + " is not an admin.");
@@ -873,16 +1082,53 @@ public class Server {
     }
 
     private static void displayServerStats(PrintWriter adminOut) {
+        int subscribed;
+        int subscriptionCount;
+        userRoomsLock.lock();
+        try {
+            subscribed = subscriptions.users();
+            subscriptionCount = subscriptions.size();
+        } finally {
+            userRoomsLock.unlock();
+        }
         chatRoomsLock.lock();
         clientUsernamesLock.lock();
         try {
             adminOut.println("=== SERVER STATISTICS ===");
             adminOut.println("Total connected users: " + clientUsernames.size());
             adminOut.println("Total chat rooms: " + chatRooms.size());
+            adminOut.println("Room subscriptions: " + subscriptionCount + " by " + subscribed + " users");
             adminOut.println("\nUsers per room:");
-            for (Map.Entry<String, Map<Socket, String>> entry : chatRooms.entrySet()) {
+            for (Map.Entry<String, RoomMembers> entry : chatRooms.entrySet()) {
                 adminOut.println("- " + entry.getKey() + ": " + entry.getValue().size() + " users");
             }
+            adminOut.println("\nDelivery lanes (queue to socket):");
+            for (String line : LaneMetrics.summary()) {
+                adminOut.println(line);
+            }
+            adminOut.println("\nRoom fan-out:");
+            for (String line : Fanout.summary()) {
+                adminOut.println(line);
+            }
+            adminOut.println("\nConnections:");
+            for (String line : Admission.summary()) {
+                adminOut.println(line);
+            }
+            for (String line : ConnectionScope.summary(connections.size())) {
+                adminOut.println(line);
+            }
+            adminOut.println("\nSearch index:");
+            for (String line : SearchIndex.summary()) {
+                adminOut.println(line);
+            }
+            adminOut.println("\nAI models:");
+            for (String line : ModelRouter.summary()) {
+                adminOut.println(line);
+            }
+            adminOut.println("\nAI summaries:");
+            for (String line : RoomSummaries.summary()) {
+                adminOut.println(line);
+            }
             List<String> mutedList = UserManager.getMutedUsersList();
             adminOut.println("\nMuted users: " + mutedList.size());
             if (!mutedList.isEmpty()) {
@@ -900,47 +1146,136 @@ public class Server {
         chatRoomsLock.lock();
         try {
             String formattedMessage = "[ANNOUNCEMENT FROM " + adminUsername + "]: " + announcement;
-            for (Map.Entry<String, Map<Socket, String>> roomEntry : chatRooms.entrySet()) {
-                for (Socket socket : roomEntry.getValue().keySet()) {
-                    try {
-                        new PrintWriter(socket.getOutputStream(), true)
-                            .println(formattedMessage);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                }
+            // Encoded once and shared by every connection
+            Frame frame = Frame.of(formattedMessage);
+            try {
+                sendToEveryRoomMember(frame, ClientConnection.Lane.CONTROL);
+            } finally {
+                frame.release();
             }
         } finally {
             chatRoomsLock.unlock();
         }
+        Cluster.announce("[ANNOUNCEMENT FROM " + adminUsername + "]: " + announcement);
+    }
+
+    // Arguments of /block: the term, optionally followed by "reject"
+    private static void blockTerm(String args, PrintWriter out) {
+        ContentFilter.Action action = ContentFilter.Action.MASK;
+        String term = args;
+        if (args.endsWith(" reject")) {
+            action = ContentFilter.Action.REJECT;
+            term = args.substring(0, args.length() - 7).trim();
+        }
+        if (term.isEmpty()) {
+            out.println("Usage: /block <term> [reject]");
+            return;
+        }
+        if (!ContentFilter.block(term, action)) {
+            out.println("'" + term + "' is already blocked.");
+            return;
+        }
+        Cluster.filterChanged(ContentFilter.list());
+        out.println(action == ContentFilter.Action.REJECT
+            ? "Messages containing '" + term + "' will be rejected."
+            : "'" + term + "' will be masked in messages.");
+    }
+
+    private static void listBlockedTerms(PrintWriter out) {
+        Map<String, ContentFilter.Action> terms = ContentFilter.terms();
+        StringBuilder listing = new StringBuilder("Blocked terms: " + terms.size());
+        for (Map.Entry<String, ContentFilter.Action> entry : terms.entrySet()) {
+            listing.append("\n- ").append(entry.getKey()).append(" (").append(entry.getValue().name().toLowerCase()).append(')');
+        }
+        out.println(listing);
     }
 
     private static Socket findUserSocketByUsername(String username) {
+        int id = Symbols.USERS.lookup(username);
+        if (id < 0) {
+            return null;
+        }
         clientUsernamesLock.lock();
         try {
-            for (Map.Entry<Socket, String> entry : clientUsernames.entrySet()) {
-                if (entry.getValue().equals(username)) {
-                    return entry.getKey();
-                }
-            }
-            return null;
+            return id < socketsByUser.length ? socketsByUser[id] : null;
         } finally {
             clientUsernamesLock.unlock();
         }
     }
 
-    private static String callLLM(String context) {
-        try {
-            URL url = new URL("http://localhost:11434/api/generate");
+    // Must be called with clientUsernamesLock held
+    private static void bindUser(Socket socket, String username) {
+        int id = Symbols.USERS.id(username);
+        if (id >= socketsByUser.length) {
+            socketsByUser = Arrays.copyOf(socketsByUser, Math.max(id + 1, socketsByUser.length * 2));
+        }
+        clientUsernames.put(socket, username);
+        socketsByUser[id] = socket;
+    }
+
+    // Must be called with clientUsernamesLock held
+    private static void unbindUser(Socket socket) {
+        String username = clientUsernames.remove(socket);
+        if (username != null) {
+            int id = Symbols.USERS.lookup(username);
+            if (socketsByUser[id] == socket) {
+                socketsByUser[id] = null;
+            }
+        }
+    }
+
+    // Saves the rooms the connection is in as the user's subscriptions, the active room first, and
+    // tells the other nodes and the client. Returns them in that order. Must be called with
+    // chatRoomsLock held
+    private static List<String> roomsChanged(String username, ClientConnection connection, String activeRoom,
+            PrintWriter out, boolean persist) {
+        List<String> rooms = new ArrayList<>();
+        rooms.add(activeRoom);
+        for (int room : connection.getRooms()) {
+            String roomName = Symbols.ROOMS.name(room);
+            if (!roomName.equals(activeRoom)) {
+                rooms.add(roomName);
+            }
+        }
+        userRoomsLock.lock();
+        try {
+            subscriptions.set(username, rooms);
+            if (persist) {
+                saveUserRooms();
+            }
+        } finally {
+            userRoomsLock.unlock();
+        }
+        Cluster.locationUpdated(username, rooms);
+        out.println("ROOMS:" + String.join("\t", rooms));
+        return rooms;
+    }
+
+    static String callLLM(String roomName, String context) {
+        return callLLM(ModelRouter.acquire(roomName), context);
+    }
+
+    // Calls the given model, which must have been acquired from ModelRouter; releases it
+    static String callLLM(ModelRouter.Target target, String context) {
+        long start = System.nanoTime();
+        ChatEvents.LlmCall event = new ChatEvents.LlmCall();
+        event.begin();
+        event.model = target.getModel();
+        event.promptChars = context.length();
+        try {
+            URL url = new URL(target.getEndpoint() + "/api/generate");
             HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            // A hung model must not hold the room's bot forever
+            conn.setConnectTimeout(LLM_CONNECT_TIMEOUT_MS);
+            conn.setReadTimeout(LLM_READ_TIMEOUT_MS);
             conn.setRequestMethod("POST");
             conn.setRequestProperty("Content-Type", "application/json");
             conn.setDoOutput(true);
 
             String safePrompt = context.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
             String jsonInput = String.format(
-                "{ \"model\": \"llama3\", \"prompt\": \"%s\", \"stream\": false }",
-                safePrompt
+                "{ \"model\": \"%s\", \"prompt\": \"%s\", \"stream\": false }",
+                target.getModel(), safePrompt
             );
 
             try (OutputStream os = conn.getOutputStream()) {
@@ -964,12 +1299,19 @@ public class Server {
                 String raw = matcher.group(1);
 
                 String unescaped = raw.replace("\\n", "\n").replace("\\\"", "\"").replace("\\\\", "\\");
+                event.responseChars = unescaped.length();
+                event.success = true;
                 return unescaped;
             }
+            event.error = "Unexpected response";
             return "[AI Error: Unexpected response]";
         } catch (Exception e) {
-            e.printStackTrace();
+            Log.error("ai", "LLM call failed", e);
+            event.error = e.getMessage();
             return "[AI Error: " + e.getMessage() + "]";
+        } finally {
+            ModelRouter.release(target, System.nanoTime() - start, event.success);
+            event.commit();
         }
     }
 
@@ -998,35 +1340,741 @@ public class Server {
                 buffer.clear();
             }
 
+            ChatEvents.AiBatch event = new ChatEvents.AiBatch();
+            event.begin();
             String prompt = aiRoomPrompts.get(roomName);
-            String context = prompt + "\n" + String.join("\n", toSend);
-            String botReply = callLLM(context);
+            String context = buildAiContext(roomName, prompt, toSend);
+            String botReply = callLLM(roomName, context);
 
             final String finalBotReply = botReply.replace("\n", " ").replace("\r", " ");
 
-            aiRoomHistory.get(roomName).addAll(toSend);
-            aiRoomHistory.get(roomName).add("Bot: " + finalBotReply);
+            List<String> history = aiRoomHistory.get(roomName);
+            synchronized (history) {
+                history.addAll(toSend);
+                history.add("Bot: " + finalBotReply);
+            }
+            RoomSummaries.historyGrew(roomName, prompt, history);
+            VectorIndex index = aiRoomIndex(roomName);
+            for (String line : toSend) {
+                index.add(line);
+            }
+            index.add("Bot: " + finalBotReply);
+            SearchIndex.add(roomName, "Bot", finalBotReply);
 
             chatRoomsLock.lock();
             try {
-                for (Socket socket : chatRooms.get(roomName).keySet()) {
-                    Thread.startVirtualThread(() -> {
-                        try {
-                            new PrintWriter(socket.getOutputStream(), true)
-                                .println("Bot: " + finalBotReply);
-                        } catch (Exception e) {
-                            System.out.println("Error sending bot message to " + socket.getInetAddress());
-                            e.printStackTrace();
-                        }
-                    });
+                broadcastToRoom(roomName, "Bot: " + finalBotReply, null);
+            } finally {
+                chatRoomsLock.unlock();
+            }
+            Cluster.publish(roomName, "Bot: " + finalBotReply, false);
+            event.room = roomName;
+            event.messages = toSend.size();
+            event.replyChars = finalBotReply.length();
+            event.commit();
+        }
+    }
+
+    // Room prompt, the older lines most related to the new ones, the last few lines for continuity
+    // and the new lines. Keeps the prompt short however long the room's history gets.
+    private static String buildAiContext(String roomName, String prompt, List<String> newLines) {
+        List<String> recent;
+        List<String> history = aiRoomHistory.get(roomName);
+        synchronized (history) {
+            recent = new ArrayList<>(history.subList(Math.max(0, history.size() - AI_RECENT_LINES), history.size()));
+        }
+        List<String> recalled = aiRoomIndex(roomName).search(String.join("\n", newLines), AI_RECALLED_LINES, recent.size());
+
+        StringBuilder context = new StringBuilder(prompt).append('\n');
+        if (!recalled.isEmpty()) {
+            context.append("Earlier in this conversation:\n");
+            for (String line : recalled) {
+                context.append(line).append('\n');
+            }
+            context.append("Most recent messages:\n");
+        }
+        for (String line : recent) {
+            context.append(line).append('\n');
+        }
+        return context.append(String.join("\n", newLines)).toString();
+    }
+
+    // Built from the room's history on first use, so restored rooms can recall old lines too
+    private static VectorIndex aiRoomIndex(String roomName) {
+        return aiRoomIndexes.computeIfAbsent(roomName, name -> {
+            VectorIndex index = new VectorIndex();
+            List<String> history = aiRoomHistory.get(name);
+            synchronized (history) {
+                for (String line : history.subList(Math.max(0, history.size() - VectorIndex.MAX_ROWS), history.size())) {
+                    index.add(line);
+                }
+            }
+            return index;
+        });
+    }
+
+    // Called when rooms or memberships change; a burst of changes leads to one rebuild
+    private static void directoryChanged() {
+        if (directoryRefreshPending.compareAndSet(false, true)) {
+            timerWheel.schedule(Server::refreshDirectory, DIRECTORY_REFRESH_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Copies rooms and members under the lock, sorting and indexing happen outside it
+    private static void refreshDirectory() {
+        directoryRefreshPending.set(false);
+        List<RoomDirectory.Room> rooms = new ArrayList<>();
+        Map<String, List<String>> members = new HashMap<>();
+        chatRoomsLock.lock();
+        try {
+            for (Map.Entry<String, RoomMembers> entry : chatRooms.entrySet()) {
+                rooms.add(new RoomDirectory.Room(entry.getKey(), entry.getValue().size(), aiRoomPrompts.containsKey(entry.getKey())));
+                RoomMembers room = entry.getValue();
+                List<String> names = new ArrayList<>(room.size());
+                for (int i = 0; i < room.size(); i++) {
+                    names.add(Symbols.USERS.name(room.user(i)));
+                }
+                members.put(entry.getKey(), names);
+            }
+        } finally {
+            chatRoomsLock.unlock();
+        }
+        RoomDirectory.publish(rooms, members);
+    }
+
+    // Arguments of /rooms and /users: an optional name prefix ("ai*"), "popular" and "page <n>"
+    private static void listRooms(String args, PrintWriter out) {
+        String prefix = "";
+        boolean popular = false;
+        int page = 1;
+        String[] words = args.isEmpty() ? new String[0] : args.split("\\s+");
+        for (int i = 0; i < words.length; i++) {
+            if (words[i].equals("page") && i + 1 < words.length) {
+                page = parsePage(words[++i]);
+            } else if (words[i].equals("popular")) {
+                popular = true;
+            } else {
+                prefix = words[i].endsWith("*") ? words[i].substring(0, words[i].length() - 1) : words[i];
+            }
+        }
+        RoomDirectory.Page<RoomDirectory.Room> result = RoomDirectory.rooms(prefix, popular, page);
+        // The whole page goes out as one write
+        StringBuilder listing = new StringBuilder("Available chat rooms");
+        appendPageHeader(listing, result);
+        for (RoomDirectory.Room room : result.items()) {
+            listing.append("\n- ").append(room.name()).append(" (").append(room.members())
+                .append(room.members() == 1 ? " user)" : " users)");
+            if (room.ai()) {
+                listing.append(" [AI]");
+            }
+        }
+        out.println(listing);
+    }
+
+    private static void listUsers(String roomName, String args, PrintWriter out) {
+        String prefix = "";
+        int page = 1;
+        String[] words = args.isEmpty() ? new String[0] : args.split("\\s+");
+        for (int i = 0; i < words.length; i++) {
+            if (words[i].equals("page") && i + 1 < words.length) {
+                page = parsePage(words[++i]);
+            } else {
+                prefix = words[i].endsWith("*") ? words[i].substring(0, words[i].length() - 1) : words[i];
+            }
+        }
+        RoomDirectory.Page<String> result = RoomDirectory.users(roomName, prefix, page);
+        StringBuilder listing = new StringBuilder("Users in the current room (" + roomName + ")");
+        appendPageHeader(listing, result);
+        for (String user : result.items()) {
+            listing.append("\n- ").append(user);
+        }
+        out.println(listing);
+    }
+
+    private static void listOnline(String roomName, PrintWriter out) {
+        List<String> online = Presence.online(roomName);
+        int followers;
+        userRoomsLock.lock();
+        try {
+            followers = subscriptions.followers(roomName);
+        } finally {
+            userRoomsLock.unlock();
+        }
+        StringBuilder listing = new StringBuilder();
+        listing.append(online.size()).append(online.size() == 1 ? " user" : " users").append(" online in ").append(roomName)
+            .append(" (").append(followers).append(" in the room)");
+        if (!online.isEmpty()) {
+            listing.append(": ").append(String.join(", ", online.subList(0, Math.min(online.size(), WHO_LIMIT))));
+            if (online.size() > WHO_LIMIT) {
+                listing.append(" and ").append(online.size() - WHO_LIMIT).append(" more (see /users)");
+            }
+        }
+        out.println(listing);
+    }
+
+    // Served from the cached summary only, a missing or stale one is updated in the background
+    private static void showSummary(String roomName, PrintWriter out) {
+        String prompt;
+        List<String> history;
+        boolean exists;
+        chatRoomsLock.lock();
+        try {
+            prompt = aiRoomPrompts.get(roomName);
+            history = aiRoomHistory.get(roomName);
+            exists = chatRooms.containsKey(roomName);
+        } finally {
+            chatRoomsLock.unlock();
+        }
+        if (prompt == null || history == null) {
+            out.println(exists ? "Summaries are only kept for AI rooms." : "Room '" + roomName + "' does not exist.");
+            return;
+        }
+        RoomSummaries.Summary summary = RoomSummaries.request(roomName, prompt, history);
+        int waiting = RoomSummaries.waiting(roomName, history);
+        if (summary == null) {
+            out.println(waiting == 0 ? "Nothing to summarize in " + roomName + " yet."
+                : "The summary of " + roomName + " is being prepared, try again shortly.");
+            return;
+        }
+        long minutes = (System.currentTimeMillis() - summary.updatedAt()) / 60_000;
+        StringBuilder reply = new StringBuilder("Summary of ").append(roomName).append(" (")
+            .append(summary.covered()).append(" messages, updated ")
+            .append(minutes == 0 ? "just now" : minutes + (minutes == 1 ? " minute ago" : " minutes ago"));
+        if (waiting > 0) {
+            reply.append(", ").append(waiting).append(waiting == 1 ? " newer message" : " newer messages").append(" not in it yet");
+        }
+        out.println(reply.append("): ").append(summary.text()));
+    }
+
+    private static void appendPageHeader(StringBuilder listing, RoomDirectory.Page<?> result) {
+        if (result.pages() > 1) {
+            listing.append(" - page ").append(result.page()).append(" of ").append(result.pages())
+                .append(", ").append(result.total()).append(" in total (use page <n>)");
+        }
+        listing.append(':');
+    }
+
+    // Arguments of /search: the terms, optionally followed by the name of a room to search in
+    private static void searchHistory(String args, PrintWriter out) {
+        String[] words = args.split("\\s+");
+        String room = null;
+        String query = args;
+        if (words.length > 1 && Symbols.ROOMS.lookup(words[words.length - 1]) >= 0) {
+            room = words[words.length - 1];
+            query = args.substring(0, args.lastIndexOf(room)).trim();
+        }
+        long start = System.nanoTime();
+        List<SearchIndex.Hit> hits = SearchIndex.search(query, room, SEARCH_RESULTS);
+        long micros = (System.nanoTime() - start) / 1000;
+        StringBuilder listing = new StringBuilder();
+        listing.append(hits.isEmpty() ? "No messages" : hits.size() + (hits.size() == 1 ? " message" : " messages"))
+            .append(" matching '").append(query).append('\'');
+        if (room != null) {
+            listing.append(" in ").append(room);
+        }
+        listing.append(" (").append(micros / 1000).append('.').append(String.format("%03d", micros % 1000)).append(" ms)");
+        for (SearchIndex.Hit hit : hits) {
+            listing.append("\n[").append(Instant.ofEpochMilli(hit.timeMillis()).truncatedTo(ChronoUnit.SECONDS)).append("] ")
+                .append(hit.room()).append(" - ").append(hit.username()).append(": ").append(hit.text());
+        }
+        out.println(listing);
+    }
+
+    private static int parsePage(String word) {
+        try {
+            return Integer.parseInt(word);
+        } catch (NumberFormatException e) {
+            return 1;
+        }
+    }
+
+    // Must be called with chatRoomsLock held
+    private static void addRoomMember(String roomName, Socket socket, String username) {
+        RoomMembers room = chatRooms.get(roomName);
+        ClientConnection connection = connections.get(socket);
+        if (connection == null) {
+            return;
+        }
+        int userId = Symbols.USERS.id(username);
+        if (room.add(connection, userId)) {
+            connection.addRoom(Symbols.ROOMS.id(roomName));
+            Presence.memberAdded(roomName, userId);
+        }
+        Cluster.localRoomSize(roomName, room.size());
+        directoryChanged();
+    }
+
+    // Must be called with chatRoomsLock held
+    private static void removeRoomMember(String roomName, Socket socket) {
+        ClientConnection connection = connections.get(socket);
+        if (connection != null) {
+            removeRoomMember(roomName, connection);
+        }
+    }
+
+    // Also for a connection already taken out of connections. Must be called with chatRoomsLock held
+    private static void removeRoomMember(String roomName, ClientConnection connection) {
+        RoomMembers room = chatRooms.get(roomName);
+        if (room == null) {
+            connection.removeRoom(Symbols.ROOMS.id(roomName));
+            return;
+        }
+        int userId = room.remove(connection);
+        connection.removeRoom(Symbols.ROOMS.id(roomName));
+        if (userId >= 0) {
+            Presence.memberRemoved(roomName, userId);
+            Cluster.localRoomSize(roomName, room.size());
+            directoryChanged();
+        }
+    }
+
+    // Must be called with chatRoomsLock held
+    private static void removeFromAllRooms(Socket socket) {
+        ClientConnection connection = connections.get(socket);
+        if (connection == null) {
+            return;
+        }
+        // Only the rooms the connection is in, not every room on the server
+        for (int room : connection.getRooms()) {
+            removeRoomMember(Symbols.ROOMS.name(room), socket);
+        }
+    }
+
+    // Small rooms hear about each change right away, large ones get a batched notice every
+    // PRESENCE_FLUSH_MS. Must be called with chatRoomsLock held
+    private static void announcePresence(String roomName, String username, Presence.Change change, Socket except) {
+        RoomMembers room = chatRooms.get(roomName);
+        if (room == null) {
+            return;
+        }
+        if (room.size() < PRESENCE_BATCH_THRESHOLD) {
+            broadcastToRoom(roomName, change.notice(username), except);
+            return;
+        }
+        Presence.queue(roomName, username, change);
+        if (presenceFlushPending.compareAndSet(false, true)) {
+            timerWheel.schedule(Server::flushPresence, PRESENCE_FLUSH_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void flushPresence() {
+        presenceFlushPending.set(false);
+        Map<String, String> notices = Presence.drain();
+        if (notices.isEmpty()) {
+            return;
+        }
+        chatRoomsLock.lock();
+        try {
+            for (Map.Entry<String, String> notice : notices.entrySet()) {
+                broadcastToRoom(notice.getKey(), notice.getValue(), null);
+            }
+        } finally {
+            chatRoomsLock.unlock();
+        }
+    }
+
+    // Sends a line to every local member of a room except the sender, tagged with the room since a
+    // member can be in several. Must be called with chatRoomsLock held
+    private static int broadcastToRoom(String roomName, String line, Socket except) {
+        // Encode once, every recipient writes the same buffer
+        Frame frame = Frame.of("[" + roomName + "] " + line);
+        try {
+            return sendFrameToRoom(roomName, frame, except, ClientConnection.Lane.CHAT);
+        } finally {
+            frame.release();
+        }
+    }
+
+    // Queues the frame on each member's lane, the writers deliver it; large rooms are split over the
+    // fan-out workers. Returns how many members it was queued for. Must be called with chatRoomsLock held
+    private static int sendFrameToRoom(String roomName, Frame frame, Socket except, ClientConnection.Lane lane) {
+        RoomMembers room = chatRooms.get(roomName);
+        if (room == null) {
+            return 0;
+        }
+        return Fanout.toRoom(roomName, room, frame, except, lane);
+    }
+
+    // Once per connection however many rooms it is in, skipping connections not logged in yet. Must be
+    // called with chatRoomsLock held
+    private static void sendToEveryRoomMember(Frame frame, ClientConnection.Lane lane) {
+        List<ClientConnection> members = new ArrayList<>(connections.size());
+        for (ClientConnection connection : connections.values()) {
+            if (connection.getRooms().length > 0) {
+                members.add(connection);
+            }
+        }
+        Fanout.toAll(members, frame, lane);
+    }
+
+    private static void handshake(SSLSocket socket) throws IOException {
+        ChatEvents.TlsHandshake event = new ChatEvents.TlsHandshake();
+        event.begin();
+        try {
+            socket.startHandshake();
+            event.protocol = socket.getSession().getProtocol();
+            event.cipherSuite = socket.getSession().getCipherSuite();
+            event.success = true;
+        } catch (IOException e) {
+            event.error = e.getMessage();
+            throw e;
+        } finally {
+            event.remoteAddress = String.valueOf(socket.getRemoteSocketAddress());
+            event.commit();
+        }
+    }
+
+    private static ClientConnection openConnection(Socket socket, ConnectionScope scope) throws IOException {
+        ClientConnection connection = new ClientConnection(socket);
+        connections.put(socket, connection);
+        connection.startWriter(scope);
+        connection.setHeartbeat(scope.own(timerWheel.schedule(() -> heartbeat(connection), HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS)));
+        return connection;
+    }
+
+    // After a connection's cleanup nothing should refer to it any more; whatever still does is
+    // counted as a leak and removed
+    private static void checkReleased(Socket socket, ClientConnection connection) {
+        if (connection.getRooms().length > 0) {
+            ConnectionScope.leaked(connection.getRooms().length + " room memberships of " + socket.getInetAddress());
+            chatRoomsLock.lock();
+            try {
+                for (int room : connection.getRooms()) {
+                    removeRoomMember(Symbols.ROOMS.name(room), connection);
                 }
             } finally {
                 chatRoomsLock.unlock();
             }
         }
+        clientUsernamesLock.lock();
+        try {
+            if (clientUsernames.containsKey(socket)) {
+                ConnectionScope.leaked("username binding of " + socket.getInetAddress());
+                unbindUser(socket);
+            }
+        } finally {
+            clientUsernamesLock.unlock();
+        }
+    }
+
+    // Runs every HEARTBEAT_INTERVAL_MS for each connection: evicts it if nothing was received for
+    // HEARTBEAT_TIMEOUT_MS, otherwise pings it so an idle but healthy client answers with PONG
+    private static void heartbeat(ClientConnection connection) {
+        Socket socket = connection.getSocket();
+        if (socket.isClosed()) {
+            return;
+        }
+        if (connection.idleMillis() > HEARTBEAT_TIMEOUT_MS) {
+            Log.info("server", "Closing dead connection " + socket.getInetAddress() + " after " + connection.idleMillis() + " ms without traffic");
+            try {
+                // The handler's read fails and its cleanup removes the connection from its rooms
+                socket.close();
+            } catch (IOException e) {}
+            return;
+        }
+        connection.sendControl("PING:" + System.currentTimeMillis());
+        connection.getHeartbeat().rearm(HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Control lines (bans, mutes, role changes) skip ahead of any chat backlog
+    private static void sendLine(Socket socket, String line) {
+        ClientConnection connection = connections.get(socket);
+        if (connection != null) {
+            connection.sendControl(line);
+        }
+    }
+
+    private static void closeAfterControl(Socket socket) {
+        ClientConnection connection = connections.get(socket);
+        if (connection != null) {
+            connection.closeAfterControl();
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.warn("server", "Could not close socket " + socket.getInetAddress() + ": " + e.getMessage());
+        }
+    }
+
+    // Returns false if the line was not given to the bot because the server is shedding load
+    private static boolean bufferAiMessage(String roomName, String line) {
+        if (Admission.shedAi()) {
+            return false;
+        }
+        aiRoomBuffer.computeIfAbsent(roomName, k -> new ArrayList<>());
+
+        List<String> buffer = aiRoomBuffer.get(roomName);
+        synchronized (buffer) {
+            buffer.add(line);
+        }
+
+        // If bot is not busy, start processing
+        aiRoomBotBusy.putIfAbsent(roomName, new AtomicBoolean(false));
+        AtomicBoolean botBusy = aiRoomBotBusy.get(roomName);
+
+        if (botBusy.compareAndSet(false, true)) {
+            Thread.startVirtualThread(() -> processAiRoomBuffer(roomName));
+        }
+        return true;
+    }
+
+    // Room line published by another cluster node
+    static void onClusterMessage(String roomName, String line, boolean runBot) {
+        chatRoomsLock.lock();
+        try {
+            broadcastToRoom(roomName, line, null);
+            if (runBot && aiRoomPrompts.containsKey(roomName)) {
+                bufferAiMessage(roomName, line);
+            }
+        } finally {
+            chatRoomsLock.unlock();
+        }
+    }
+
+    static void onClusterRoom(String roomName, String aiPrompt) {
+        chatRoomsLock.lock();
+        try {
+            chatRooms.putIfAbsent(roomName, new RoomMembers());
+            if (aiPrompt != null) {
+                aiRoomPrompts.put(roomName, aiPrompt);
+                aiRoomHistory.putIfAbsent(roomName, new ArrayList<>());
+            }
+            directoryChanged();
+        } finally {
+            chatRoomsLock.unlock();
+        }
+    }
+
+    static void onClusterSession(Token token) {
+        registerSession(token);
+    }
+
+    // Also replayed when a peer reconnects, so a session started after the ban is left alone
+    static void onClusterRevoke(String username, long until) {
+        Token.revoke(username, until);
+        Token session;
+        userTokensLock.lock();
+        try {
+            session = userTokens.get(username);
+        } finally {
+            userTokensLock.unlock();
+        }
+        if (session != null && session.getExpirationTime() <= until) {
+            Authenticator.forget(username);
+            endSession(username);
+        }
+        snapshotSoon();
+    }
+
+    static void onClusterLocation(String username, List<String> rooms) {
+        userRoomsLock.lock();
+        try {
+            subscriptions.set(username, rooms);
+        } finally {
+            userRoomsLock.unlock();
+        }
+    }
+
+    static void onClusterAnnounce(String line) {
+        Frame frame = Frame.of(line);
+        chatRoomsLock.lock();
+        try {
+            sendToEveryRoomMember(frame, ClientConnection.Lane.CONTROL);
+        } finally {
+            chatRoomsLock.unlock();
+            frame.release();
+        }
+    }
+
+    // Delivers to the user wherever they are connected, or keeps the message in their mailbox
+    private static void sendDirectMessage(String from, String to, String text, PrintWriter out) {
+        Log.chat("@" + to, from, text);
+        if (deliverLocally(to, from, text)) {
+            out.println("[DM to " + to + "]: " + text);
+            return;
+        }
+        String node = Cluster.nodeOf(to);
+        if (node == null) {
+            node = Cluster.mailboxNode(to);
+            if (node.equals(Cluster.getNodeId())) {
+                try {
+                    Mailbox.append(to, from, text);
+                } catch (IOException e) {
+                    Log.error("persistence", "Error storing message for " + to + ": " + e.getMessage());
+                    out.println("Your message to " + to + " could not be stored, please try again later.");
+                    return;
+                }
+            } else {
+                Cluster.directMessage(node, from, to, text);
+            }
+            out.println("[DM to " + to + "]: " + text + " (" + to + " is offline and will receive it on their next login)");
+            return;
+        }
+        Cluster.directMessage(node, from, to, text);
+        out.println("[DM to " + to + "]: " + text);
+    }
+
+    private static boolean deliverLocally(String to, String from, String text) {
+        ClientConnection connection = findLiveConnection(to);
+        if (connection == null) {
+            return false;
+        }
+        Frame frame = Frame.of("[DM from " + from + "]: " + text);
+        try {
+            return connection.send(frame, ClientConnection.Lane.CHAT);
+        } finally {
+            frame.release();
+        }
+    }
+
+    private static ClientConnection findLiveConnection(String username) {
+        Socket socket = findUserSocketByUsername(username);
+        return socket == null ? null : connections.get(socket);
+    }
+
+    // True once the batch is queued on the connection
+    private static boolean sendMailbox(ClientConnection connection, List<Mailbox.Message> batch) {
+        Frame frame = Frame.of(formatMailbox(batch));
+        try {
+            return connection.send(frame, ClientConnection.Lane.CHAT);
+        } finally {
+            frame.release();
+        }
+    }
+
+    // One block for a whole batch so it reaches the client in a single write
+    private static String formatMailbox(List<Mailbox.Message> messages) {
+        StringBuilder block = new StringBuilder();
+        block.append("You have ").append(messages.size()).append(" private message")
+            .append(messages.size() == 1 ? "" : "s").append(" received while you were away:");
+        for (Mailbox.Message message : messages) {
+            block.append('\n').append('[').append(Instant.ofEpochMilli(message.timeMillis()).truncatedTo(ChronoUnit.SECONDS))
+                .append("] [DM from ").append(message.from()).append("]: ").append(message.text());
+        }
+        return block.toString();
+    }
+
+    // A direct message forwarded by the node the sender is connected to
+    static void onClusterDirectMessage(String from, String to, String text) {
+        if (deliverLocally(to, from, text)) {
+            return;
+        }
+        // The recipient left in the meantime, or the message was sent here for safekeeping
+        try {
+            Mailbox.append(to, from, text);
+        } catch (IOException e) {
+            Log.error("persistence", "Error storing message for " + to + ": " + e.getMessage());
+        }
+    }
+
+    // The user logged in on another node; their mail is only removed here once that node confirms it
+    static void onClusterMailboxRequest(String peerId, String username) {
+        List<Mailbox.Message> batch = Mailbox.peek(username);
+        if (!batch.isEmpty()) {
+            Cluster.sendMailbox(peerId, username, batch.get(0).timeMillis(), batch.size(), formatMailbox(batch));
+        }
+    }
+
+    static void onClusterMailbox(String mailboxNode, String username, long firstTime, int count, String block) {
+        ClientConnection connection = findLiveConnection(username);
+        Frame frame = Frame.of(block);
+        try {
+            if (connection == null || !connection.send(frame, ClientConnection.Lane.CHAT)) {
+                Log.info("cluster", "Mailbox of " + username + " could not be handed over, it stays on " + mailboxNode);
+                return;
+            }
+        } finally {
+            frame.release();
+        }
+        Cluster.mailboxDelivered(mailboxNode, username, firstTime, count);
+    }
+
+    // Removes the confirmed batch and sends the next one, if any
+    static void onClusterMailboxDelivered(String peerId, String username, long firstTime, int count) {
+        if (Mailbox.remove(username, firstTime, count)) {
+            onClusterMailboxRequest(peerId, username);
+        }
+    }
+
+    static void onClusterKick(String username, String line) {
+        Socket userSocket = findUserSocketByUsername(username);
+        if (userSocket == null) {
+            return;
+        }
+        sendLine(userSocket, line);
+        chatRoomsLock.lock();
+        try {
+            removeFromAllRooms(userSocket);
+        } finally {
+            chatRoomsLock.unlock();
+        }
+        clientUsernamesLock.lock();
+        try {
+            unbindUser(userSocket);
+        } finally {
+            clientUsernamesLock.unlock();
+        }
+        closeAfterControl(userSocket);
+    }
+
+    // Everything a peer needs to know when it (re)connects to this node
+    static List<String[]> clusterState() {
+        List<String[]> state = new ArrayList<>();
+        chatRoomsLock.lock();
+        try {
+            for (String roomName : chatRooms.keySet()) {
+                String prompt = aiRoomPrompts.get(roomName);
+                state.add(new String[] {"ROOM", roomName, prompt == null ? "" : prompt});
+            }
+        } finally {
+            chatRoomsLock.unlock();
+        }
+        userTokensLock.lock();
+        try {
+            for (Token token : userTokens.values()) {
+                Token.Signed signed = token.getSigned();
+                state.add(new String[] {"SESSION", token.getUsername(), signed.token(), String.valueOf(signed.expirationTime())});
+            }
+        } finally {
+            userTokensLock.unlock();
+        }
+        clientUsernamesLock.lock();
+        try {
+            for (Socket socket : connections.keySet()) {
+                String username = clientUsernames.get(socket);
+                if (username != null) {
+                    state.add(new String[] {"ONLINE", username});
+                }
+            }
+        } finally {
+            clientUsernamesLock.unlock();
+        }
+        for (Map.Entry<String, Long> revocation : Token.revocations().entrySet()) {
+            state.add(new String[] {"REVOKE", revocation.getKey(), String.valueOf(revocation.getValue())});
+        }
+        for (User user : UserManager.getUsers()) {
+            // Plain passwords from an old users.csv stay on this node until they are upgraded
+            if (Authenticator.isHashed(user.getPasswordHash())) {
+                state.add(new String[] {"ACCOUNT", user.getUsername(), user.getPasswordHash(), user.getRole()});
+            }
+        }
+        // Even when empty, so a peer that missed the last /unblock drops the term
+        state.add(Cluster.filterFields(ContentFilter.list()));
+        userRoomsLock.lock();
+        try {
+            subscriptions.forEach((username, rooms) -> state.add(Cluster.locationFields(username, rooms)));
+        } finally {
+            userRoomsLock.unlock();
+        }
+        for (Map.Entry<String, RoomSummaries.Summary> summary : RoomSummaries.all().entrySet()) {
+            state.add(Cluster.summaryFields(summary.getKey(), summary.getValue()));
+        }
+        return state;
     }
 
     private static void saveUserRooms() {
+        ChatEvents.Persistence event = ChatEvents.Persistence.start("saveUserRooms", USER_ROOMS_FILE);
         userRoomsLock.lock();
         try {
             // Create directory if it doesn't exist
@@ -1039,23 +2087,136 @@ public class Server {
                 // Write header
                 writer.write("username,room\n");
                 
-                // Write all user-room assignments
-                for (Map.Entry<String, String> entry : userCurrentRooms.entrySet()) {
-                    writer.write(entry.getKey() + "," + entry.getValue() + "\n");
-                }
-                System.out.println("User room assignments saved: " + userCurrentRooms.size());
+                // One line per room a user is in, the room their messages go to first
+                StringBuilder lines = new StringBuilder();
+                subscriptions.forEach((username, rooms) -> {
+                    for (String room : rooms) {
+                        lines.append(username).append(',').append(room).append('\n');
+                    }
+                });
+                writer.write(lines.toString());
+                Log.debug("persistence", "User room assignments saved: " + subscriptions.size());
+                event.records = subscriptions.size();
+                event.success = true;
             } catch (IOException e) {
-                System.err.println("Error saving user rooms: " + e.getMessage());
+                Log.error("persistence", "Error saving user rooms: " + e.getMessage());
+            }
+        } finally {
+            userRoomsLock.unlock();
+            event.commit();
+        }
+    }
+
+    // On the snapshot thread, so it never overlaps with the periodic save
+    private static void snapshotSoon() {
+        snapshotScheduler.execute(Server::saveSnapshot);
+    }
+
+    private static void saveSnapshot() {
+        ChatEvents.Persistence event = ChatEvents.Persistence.start("saveSnapshot", SNAPSHOT_FILE.toString());
+        StateSnapshot.State state = new StateSnapshot.State();
+        chatRoomsLock.lock();
+        try {
+            for (String roomName : chatRooms.keySet()) {
+                state.rooms.put(roomName, aiRoomPrompts.get(roomName));
+                List<String> history = aiRoomHistory.get(roomName);
+                if (history != null) {
+                    synchronized (history) {
+                        state.aiHistory.put(roomName, new ArrayList<>(history));
+                    }
+                }
+            }
+        } finally {
+            chatRoomsLock.unlock();
+        }
+        userTokensLock.lock();
+        try {
+            for (Token token : userTokens.values()) {
+                if (!token.isExpired()) {
+                    state.tokens.add(token);
+                }
+            }
+        } finally {
+            userTokensLock.unlock();
+        }
+        userRoomsLock.lock();
+        try {
+            subscriptions.forEach(state.memberships::put);
+        } finally {
+            userRoomsLock.unlock();
+        }
+        state.revocations.putAll(Token.revocations());
+        for (Map.Entry<String, RoomSummaries.Summary> summary : RoomSummaries.all().entrySet()) {
+            if (state.rooms.get(summary.getKey()) != null) {
+                state.summaries.put(summary.getKey(), summary.getValue());
+            }
+        }
+
+        try {
+            long start = System.nanoTime();
+            StateSnapshot.write(state, SNAPSHOT_FILE);
+            Log.debug("persistence", "Snapshot saved: " + state.rooms.size() + " rooms, " + state.tokens.size()
+                + " tokens in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+            event.success = true;
+        } catch (IOException e) {
+            Log.error("persistence", "Error saving snapshot: " + e.getMessage());
+        } finally {
+            event.records = state.rooms.size() + state.tokens.size() + state.memberships.size();
+            event.commit();
+        }
+    }
+
+    private static boolean restoreSnapshot() {
+        long start = System.nanoTime();
+        StateSnapshot.State state;
+        try {
+            state = StateSnapshot.read(SNAPSHOT_FILE);
+        } catch (IOException | RuntimeException e) {
+            Log.error("persistence", "Error reading snapshot: " + e.getMessage());
+            return false;
+        }
+        if (state == null) {
+            return false;
+        }
+
+        chatRoomsLock.lock();
+        try {
+            for (Map.Entry<String, String> room : state.rooms.entrySet()) {
+                chatRooms.put(room.getKey(), new RoomMembers());
+                if (room.getValue() != null) {
+                    aiRoomPrompts.put(room.getKey(), room.getValue());
+                    aiRoomHistory.put(room.getKey(), new ArrayList<>(state.aiHistory.getOrDefault(room.getKey(), List.of())));
+                }
+            }
+        } finally {
+            chatRoomsLock.unlock();
+        }
+        // Before the tokens, so tokens of banned users are not brought back
+        state.revocations.forEach(Token::revoke);
+        for (Token token : state.tokens) {
+            if (Token.verify(token.getTokenString()) != null) {
+                registerSession(token);
+            }
+        }
+        userRoomsLock.lock();
+        try {
+            for (Map.Entry<String, List<String>> membership : state.memberships.entrySet()) {
+                subscriptions.set(membership.getKey(), membership.getValue());
             }
         } finally {
             userRoomsLock.unlock();
         }
+        state.summaries.forEach(RoomSummaries::restore);
+        Log.info("persistence", "Restored snapshot with " + state.rooms.size() + " rooms (" + aiRoomPrompts.size() + " AI), "
+            + userTokens.size() + " active tokens and " + state.memberships.size() + " user room assignments in "
+            + (System.nanoTime() - start) / 1_000_000 + " ms");
+        return true;
     }
 
     private static void loadUserRooms() {
         File roomsFile = new File(USER_ROOMS_FILE);
         if (!roomsFile.exists()) {
-            System.out.println("No saved user rooms found.");
+            Log.info("persistence", "No saved user rooms found.");
             return;
         }
 
@@ -1063,6 +2224,8 @@ public class Server {
         try (BufferedReader br = new BufferedReader(new FileReader(USER_ROOMS_FILE))) {
             String line;
             int count = 0;
+            // A user has one line per room, the room their messages go to first
+            Map<String, List<String>> rooms = new LinkedHashMap<>();
             while ((line = br.readLine()) != null) {
                 // Skip header
                 if (line.startsWith("username,room")) {
@@ -1072,13 +2235,14 @@ public class Server {
                 if (parts.length == 2) {
                     String username = parts[0];
                     String room = parts[1];
-                    userCurrentRooms.put(username, room);
+                    rooms.computeIfAbsent(username, k -> new ArrayList<>()).add(room);
                     count++;
                 }
             }
-            System.out.println("Loaded " + count + " user room assignments");
+            rooms.forEach(subscriptions::set);
+            Log.info("persistence", "Loaded " + count + " user room assignments");
         } catch (IOException e) {
-            System.err.println("Error loading user rooms: " + e.getMessage());
+            Log.error("persistence", "Error loading user rooms: " + e.getMessage());
         } finally {
             userRoomsLock.unlock();
         }
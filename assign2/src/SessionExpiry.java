@@ -0,0 +1,87 @@
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Purges server-side sessions when their token expires. Every tracked token has one timeout on a
+// timing wheel. A refresh only moves the token's expiration time; when the old timeout fires it
+// sees the token is still valid and re-arms itself for the remaining time, so refreshing costs
+// no allocation and no wheel operation. Purged usernames are handed to the persistence layer
+// in batches instead of rewriting the tokens file for each one. The batch is written on its own
+// thread, so a slow disk never holds up the wheel.
+public class SessionExpiry {
+    private static final TimerWheel wheel = new TimerWheel("session-expiry", 1, TimeUnit.SECONDS, 1024, Runnable::run);
+    private static final Queue<String> expiredBatch = new ConcurrentLinkedQueue<>();
+    // One thread, so two batches are never written at the same time
+    private static final ExecutorService flusher = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "session-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static Consumer<Token> onExpire = token -> {};
+    private static Consumer<List<String>> onBatch = usernames -> {};
+
+    // onExpire runs on the wheel thread for each expired session and must be quick; batchHandler
+    // runs on the flush thread
+    public static void start(Consumer<Token> expireHandler, Consumer<List<String>> batchHandler, int flushSeconds) {
+        onExpire = expireHandler;
+        onBatch = batchHandler;
+        TimerWheel.Timeout[] flush = new TimerWheel.Timeout[1];
+        flush[0] = wheel.schedule(() -> {
+            if (!expiredBatch.isEmpty()) {
+                flusher.execute(SessionExpiry::flushBatch);
+            }
+            flush[0].rearm(flushSeconds, TimeUnit.SECONDS);
+        }, flushSeconds, TimeUnit.SECONDS);
+    }
+
+    public static void track(Token token) {
+        TimerWheel.Timeout timeout = token.getExpiryTimeout();
+        if (timeout != null && !timeout.isCancelled()) {
+            return; // Already tracked, a refresh is picked up when the timeout fires
+        }
+        TimerWheel.Timeout[] self = new TimerWheel.Timeout[1];
+        self[0] = wheel.schedule(() -> check(token, self[0]), secondsLeft(token), TimeUnit.SECONDS);
+        token.setExpiryTimeout(self[0]);
+    }
+
+    public static void untrack(Token token) {
+        TimerWheel.Timeout timeout = token.getExpiryTimeout();
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    private static void check(Token token, TimerWheel.Timeout timeout) {
+        if (!token.isExpired()) {
+            // Refreshed since it was scheduled
+            timeout.rearm(secondsLeft(token), TimeUnit.SECONDS);
+            return;
+        }
+        timeout.cancel();
+        onExpire.accept(token);
+        expiredBatch.add(token.getUsername());
+    }
+
+    private static long secondsLeft(Token token) {
+        return Math.max(1, token.getExpirationTime() - Instant.now().getEpochSecond() + 1);
+    }
+
+    private static void flushBatch() {
+        if (expiredBatch.isEmpty()) {
+            return;
+        }
+        List<String> usernames = new ArrayList<>();
+        String username;
+        while ((username = expiredBatch.poll()) != null) {
+            usernames.add(username);
+        }
+        onBatch.accept(usernames);
+    }
+}
@@ -0,0 +1,196 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+// Binary snapshot of the server state so a restart does not need to rebuild it from the CSV files.
+//
+// Layout (big endian): magic, version, creation time, then the rooms section (name, AI prompt,
+// AI history lines), the tokens section, the memberships section and the AI summaries section, and
+// a CRC32 of everything before it. Strings are an int byte length followed by UTF-8 bytes, -1
+// meaning null. Version 1 saved one room per user; version 2 saves a count and the rooms; version 3
+// adds the summaries; version 4 adds the token revocations after the tokens. All of them can be read.
+public class StateSnapshot {
+    private static final int MAGIC = 0x43484154; // "CHAT"
+    private static final short VERSION = 4;
+
+    public static class State {
+        // room -> AI prompt, null for regular rooms
+        final Map<String, String> rooms = new LinkedHashMap<>();
+        final Map<String, List<String>> aiHistory = new LinkedHashMap<>();
+        final List<Token> tokens = new ArrayList<>();
+        // username -> tokens expiring at or before this time are revoked
+        final Map<String, Long> revocations = new LinkedHashMap<>();
+        // username -> rooms, the one their messages go to first
+        final Map<String, List<String>> memberships = new LinkedHashMap<>();
+        final Map<String, RoomSummaries.Summary> summaries = new LinkedHashMap<>();
+    }
+
+    // Writes to a temporary file first so a crash mid-write never leaves a broken snapshot
+    public static void write(State state, Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new CheckedOutputStream(new FileOutputStream(tmp.toFile()), crc), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeLong(System.currentTimeMillis());
+
+            out.writeInt(state.rooms.size());
+            for (Map.Entry<String, String> room : state.rooms.entrySet()) {
+                writeString(out, room.getKey());
+                writeString(out, room.getValue());
+                List<String> history = state.aiHistory.getOrDefault(room.getKey(), List.of());
+                out.writeInt(history.size());
+                for (String line : history) {
+                    writeString(out, line);
+                }
+            }
+
+            out.writeInt(state.tokens.size());
+            for (Token token : state.tokens) {
+                Token.Signed signed = token.getSigned();
+                writeString(out, token.getUsername());
+                writeString(out, signed.token());
+                out.writeLong(signed.expirationTime());
+            }
+            out.writeInt(state.revocations.size());
+            for (Map.Entry<String, Long> revocation : state.revocations.entrySet()) {
+                writeString(out, revocation.getKey());
+                out.writeLong(revocation.getValue());
+            }
+
+            out.writeInt(state.memberships.size());
+            for (Map.Entry<String, List<String>> membership : state.memberships.entrySet()) {
+                writeString(out, membership.getKey());
+                out.writeInt(membership.getValue().size());
+                for (String room : membership.getValue()) {
+                    writeString(out, room);
+                }
+            }
+
+            out.writeInt(state.summaries.size());
+            for (Map.Entry<String, RoomSummaries.Summary> summary : state.summaries.entrySet()) {
+                writeString(out, summary.getKey());
+                writeString(out, summary.getValue().text());
+                out.writeInt(summary.getValue().covered());
+                out.writeLong(summary.getValue().updatedAt());
+            }
+        }
+        // The checksum covers everything above and is appended after it
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp.toFile(), true))) {
+            out.writeInt((int) crc.getValue());
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // Maps the whole file and reads it front to back; returns null if it is missing or not valid
+    public static State read(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 18) {
+                return null;
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            CRC32 crc = new CRC32();
+            ByteBuffer body = buffer.duplicate();
+            body.limit((int) size - 4);
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt((int) size - 4)) {
+                Log.warn("persistence", "Snapshot " + path + " is corrupted, ignoring it");
+                return null;
+            }
+
+            int magic = buffer.getInt();
+            short version = buffer.getShort();
+            if (magic != MAGIC || version < 1 || version > VERSION) {
+                Log.warn("persistence", "Snapshot " + path + " has an unknown format, ignoring it");
+                return null;
+            }
+            buffer.getLong(); // creation time
+
+            State state = new State();
+            int roomCount = buffer.getInt();
+            for (int i = 0; i < roomCount; i++) {
+                String name = readString(buffer);
+                String prompt = readString(buffer);
+                state.rooms.put(name, prompt);
+                int historySize = buffer.getInt();
+                List<String> history = new ArrayList<>(historySize);
+                for (int j = 0; j < historySize; j++) {
+                    history.add(readString(buffer));
+                }
+                if (prompt != null) {
+                    state.aiHistory.put(name, history);
+                }
+            }
+
+            int tokenCount = buffer.getInt();
+            for (int i = 0; i < tokenCount; i++) {
+                String username = readString(buffer);
+                String tokenString = readString(buffer);
+                state.tokens.add(new Token(username, tokenString, buffer.getLong()));
+            }
+            int revocationCount = version < 4 ? 0 : buffer.getInt();
+            for (int i = 0; i < revocationCount; i++) {
+                state.revocations.put(readString(buffer), buffer.getLong());
+            }
+
+            int membershipCount = buffer.getInt();
+            for (int i = 0; i < membershipCount; i++) {
+                String username = readString(buffer);
+                int rooms = version == 1 ? 1 : buffer.getInt();
+                List<String> names = new ArrayList<>(rooms);
+                for (int j = 0; j < rooms; j++) {
+                    names.add(readString(buffer));
+                }
+                state.memberships.put(username, names);
+            }
+
+            int summaryCount = version < 3 ? 0 : buffer.getInt();
+            for (int i = 0; i < summaryCount; i++) {
+                String room = readString(buffer);
+                String text = readString(buffer);
+                int covered = buffer.getInt();
+                state.summaries.put(room, new RoomSummaries.Summary(text, covered, buffer.getLong()));
+            }
+            return state;
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
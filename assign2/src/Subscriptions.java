@@ -0,0 +1,109 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The rooms each user follows, kept across reconnects and restarts so a client gets all of them back,
+// indexed both ways: user -> rooms and room -> users. The first room of a user is the one their
+// messages go to. Ids come from Symbols, so both sides are arrays indexed by id; a user follows a
+// handful of rooms, held as a small int array, while a room can have thousands of followers, held as
+// an IntIntMap used as a set. Not thread-safe, Server guards it with userRoomsLock.
+public class Subscriptions {
+    private static final int[] NONE = new int[0];
+
+    public interface Visitor {
+        void visit(String username, List<String> rooms);
+    }
+
+    private int[][] roomsByUser = new int[64][];
+    private IntIntMap[] usersByRoom = new IntIntMap[64];
+    private int users = 0;
+    private int size = 0;
+
+    // Rooms of the user, the one their messages go to first; empty if none is saved
+    public List<String> rooms(String username) {
+        int[] rooms = roomsOf(Symbols.USERS.lookup(username));
+        List<String> names = new ArrayList<>(rooms.length);
+        for (int room : rooms) {
+            names.add(Symbols.ROOMS.name(room));
+        }
+        return names;
+    }
+
+    // Replaces the rooms of the user, the one their messages go to first
+    public void set(String username, List<String> roomNames) {
+        int user = Symbols.USERS.id(username);
+        int[] old = roomsOf(user);
+        int[] rooms = new int[roomNames.size()];
+        int count = 0;
+        for (String roomName : roomNames) {
+            int room = Symbols.ROOMS.id(roomName);
+            if (indexOf(rooms, count, room) < 0) {
+                rooms[count++] = room;
+            }
+        }
+        rooms = count == 0 ? NONE : Arrays.copyOf(rooms, count);
+
+        for (int room : old) {
+            if (indexOf(rooms, rooms.length, room) < 0) {
+                usersByRoom[room].remove(user, 0);
+            }
+        }
+        for (int room : rooms) {
+            if (indexOf(old, old.length, room) < 0) {
+                followersOf(room).put(user, 1);
+            }
+        }
+        if (user >= roomsByUser.length) {
+            roomsByUser = Arrays.copyOf(roomsByUser, Math.max(user + 1, roomsByUser.length * 2));
+        }
+        roomsByUser[user] = rooms.length == 0 ? null : rooms;
+        users += (rooms.length > 0 ? 1 : 0) - (old.length > 0 ? 1 : 0);
+        size += rooms.length - old.length;
+    }
+
+    public int followers(String roomName) {
+        int room = Symbols.ROOMS.lookup(roomName);
+        return room < 0 || room >= usersByRoom.length || usersByRoom[room] == null ? 0 : usersByRoom[room].size();
+    }
+
+    // Users following at least one room
+    public int users() {
+        return users;
+    }
+
+    // Subscriptions of all users together
+    public int size() {
+        return size;
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int user = 0; user < roomsByUser.length; user++) {
+            if (roomsByUser[user] != null) {
+                visitor.visit(Symbols.USERS.name(user), rooms(Symbols.USERS.name(user)));
+            }
+        }
+    }
+
+    private int[] roomsOf(int user) {
+        return user < 0 || user >= roomsByUser.length || roomsByUser[user] == null ? NONE : roomsByUser[user];
+    }
+
+    private IntIntMap followersOf(int room) {
+        if (room >= usersByRoom.length) {
+            usersByRoom = Arrays.copyOf(usersByRoom, Math.max(room + 1, usersByRoom.length * 2));
+        }
+        if (usersByRoom[room] == null) {
+            usersByRoom[room] = new IntIntMap(4);
+        }
+        return usersByRoom[room];
+    }
+
+    private static int indexOf(int[] rooms, int count, int room) {
+        for (int i = 0; i < count; i++) {
+            if (rooms[i] == room) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
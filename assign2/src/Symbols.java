@@ -0,0 +1,46 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Symbol table giving every username and room name a small int id, so the server's per-user and
+// per-room state can live in int maps, bitsets and arrays instead of maps keyed by strings.
+// Ids are dense, start at 0 and are never reused or removed.
+public class Symbols {
+    public static final Symbols USERS = new Symbols();
+    public static final Symbols ROOMS = new Symbols();
+
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[64];
+    private int count = 0; // guarded by this
+
+    // Returns the id of the name, assigning the next free id the first time it is seen
+    public int id(String name) {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            id = ids.get(name);
+            if (id != null) {
+                return id;
+            }
+            if (count == names.length) {
+                names = Arrays.copyOf(names, count * 2);
+            }
+            // The name is stored before the id is published, so name(id) always finds it
+            names[count] = name;
+            ids.put(name, count);
+            return count++;
+        }
+    }
+
+    // The id of a name seen before, -1 otherwise; never assigns one
+    public int lookup(String name) {
+        Integer id = ids.get(name);
+        return id == null ? -1 : id;
+    }
+
+    public String name(int id) {
+        return names[id];
+    }
+}
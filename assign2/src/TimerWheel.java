@@ -0,0 +1,143 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Hashed timing wheel: one thread advances a ring of buckets every tick and fires the timeouts
+// whose round has come. Scheduling and cancelling are O(1) and never touch the wheel directly:
+// new timeouts go through a lock-free queue that the wheel thread drains on each tick.
+public class TimerWheel {
+    private static final int PENDING = 0;
+    private static final int WAITING = 1;
+    private static final int CANCELLED = 2;
+    private static final int EXPIRED = 3;
+
+    private final long tickNanos;
+    private final int mask;
+    private final Timeout[] buckets; // heads of doubly linked lists, only used by the wheel thread
+    private final Queue<Timeout> incoming = new ConcurrentLinkedQueue<>();
+    private final Executor executor;
+    private final long startTime;
+    private long tick = 0;
+
+    // Expired tasks run on the executor so a slow task never delays the wheel
+    public TimerWheel(String name, long tickDuration, TimeUnit unit, int wheelSize, Executor executor) {
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.mask = size - 1;
+        this.buckets = new Timeout[size];
+        this.executor = executor;
+        this.startTime = System.nanoTime();
+        Thread worker = new Thread(this::run, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task);
+        timeout.rearm(delay, unit);
+        return timeout;
+    }
+
+    private void run() {
+        while (true) {
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            transferIncoming();
+            expireBucket(buckets[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferIncoming() {
+        Timeout timeout;
+        while ((timeout = incoming.poll()) != null) {
+            if (!timeout.state.compareAndSet(PENDING, WAITING)) {
+                continue; // Cancelled while waiting to be transferred
+            }
+            long ticks = Math.max((timeout.deadline - startTime) / tickNanos, tick);
+            timeout.remainingRounds = (ticks - tick) / buckets.length;
+            int index = (int) (ticks & mask);
+            timeout.next = buckets[index];
+            timeout.prev = null;
+            if (buckets[index] != null) {
+                buckets[index].prev = timeout;
+            }
+            buckets[index] = timeout;
+            timeout.bucket = index;
+        }
+    }
+
+    private void expireBucket(Timeout timeout) {
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.state.get() == CANCELLED) {
+                unlink(timeout);
+            } else if (timeout.remainingRounds <= 0) {
+                unlink(timeout);
+                if (timeout.state.compareAndSet(WAITING, EXPIRED)) {
+                    Runnable task = timeout.task;
+                    executor.execute(task);
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.next = null;
+        timeout.prev = null;
+    }
+
+    public class Timeout {
+        private final Runnable task;
+        private final AtomicInteger state = new AtomicInteger(EXPIRED);
+        private volatile long deadline;
+        // Only touched by the wheel thread
+        private long remainingRounds;
+        private int bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task) {
+            this.task = task;
+        }
+
+        // Schedules this timeout again after it fired, typically from inside its own task,
+        // so periodic and sliding timers reuse one object instead of allocating a new one
+        public boolean rearm(long delay, TimeUnit unit) {
+            if (!state.compareAndSet(EXPIRED, PENDING)) {
+                return false;
+            }
+            deadline = System.nanoTime() + unit.toNanos(delay);
+            incoming.add(this);
+            return true;
+        }
+
+        public void cancel() {
+            state.set(CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+    }
+}
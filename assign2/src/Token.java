@@ -1,58 +1,227 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.time.Instant;
-import java.util.UUID;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 
+// Tokens are self-contained: <base64url(username)>.<expiration>.<key id>.<base64url(hmac)>
+// so any server holding the signing keys can validate them without a lookup.
 public class Token {
-    private String username;
-    private String token;
-    private Long expirationTime;
+    private static final long VALIDITY_SECONDS = 3600; // Token valid for 1 hour
+    private static final String KEYS_FILE = "db/token_keys.csv";
+    private static final Base64.Encoder B64 = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder B64_DECODER = Base64.getUrlDecoder();
 
-    Token(String username, String token, Long expirationTime) {
+    // username -> tokens expiring at or before this time are revoked
+    private static final Map<String, Long> revoked = new ConcurrentHashMap<>();
+
+    // A token string and the expiration it was signed with, always replaced together
+    public record Signed(String token, long expirationTime) {}
+
+    private final String username;
+    // Refreshed in place, so a session keeps one Token object for its whole life
+    private volatile Signed signed;
+    // Expiry timer of a server-side session, null on the client
+    private TimerWheel.Timeout expiryTimeout;
+
+    Token(String username, String token, long expirationTime) {
         this.username = username;
-        this.token = token;
-        this.expirationTime = expirationTime;
+        this.signed = new Signed(token, expirationTime);
     }
 
     public static Token generateToken(String username) {
-        // Generate a random UUID and convert it to a string
-        String tokenString = UUID.randomUUID().toString();
-        Long expirationTime = Instant.now().getEpochSecond() + 3600; // Token valid for 1 hour
-        Token token = new Token(username, tokenString, expirationTime);
-        return token;
+        long expirationTime = Instant.now().getEpochSecond() + VALIDITY_SECONDS;
+        return new Token(username, sign(username, expirationTime), expirationTime);
     }
 
     public static Token getToken(String username, String tokenString) {
         // If a token already exists, instantiate it with the given values
-        Long expirationTime = Instant.now().getEpochSecond() + 3600; // Token valid for 1 hour
+        long expirationTime = Instant.now().getEpochSecond() + VALIDITY_SECONDS;
         Token token = new Token(username, tokenString, expirationTime);
         return token;
     }
 
-    public static Token refreshToken(Token existingToken) {
-        // Create a new token with refreshed expiration but the same token string
-        Long newExpirationTime = Instant.now().getEpochSecond() + 3600; // Reset to 1 hour from now
-        return new Token(existingToken.getUsername(), existingToken.getTokenString(), newExpirationTime);
+    // Extends this session by a full validity period and re-signs it, without a new Token
+    public void refresh() {
+        long newExpirationTime = Instant.now().getEpochSecond() + VALIDITY_SECONDS;
+        signed = new Signed(sign(username, newExpirationTime), newExpirationTime);
+    }
+
+    // Returns the token if the signature, expiration and revocation checks pass, null otherwise.
+    // Only uses the token string and immutable key material, so it needs no locks.
+    public static Token verify(String tokenString) {
+        String[] parts = tokenString.split("\\.");
+        if (parts.length != 4) {
+            return null;
+        }
+        Mac prototype = Keys.keys.get(parts[2]);
+        if (prototype == null) {
+            return null;
+        }
+        try {
+            String username = new String(B64_DECODER.decode(parts[0]), StandardCharsets.UTF_8);
+            long expirationTime = Long.parseLong(parts[1]);
+            byte[] expected = mac(prototype, parts[0] + "." + parts[1] + "." + parts[2]);
+            if (!MessageDigest.isEqual(expected, B64_DECODER.decode(parts[3]))) {
+                return null;
+            }
+            Long revokedUntil = revoked.get(username);
+            if (revokedUntil != null && expirationTime <= revokedUntil) {
+                return null;
+            }
+            Token token = new Token(username, tokenString, expirationTime);
+            return token.isExpired() ? null : token;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    // Invalidates every token issued to the user up to now; returns the time the revocation covers
+    public static long revoke(String username) {
+        long until = Instant.now().getEpochSecond() + VALIDITY_SECONDS;
+        revoke(username, until);
+        return until;
+    }
+
+    // Invalidates the user's tokens expiring at or before the given time, from the snapshot or a peer
+    public static void revoke(String username, long until) {
+        long now = Instant.now().getEpochSecond();
+        revoked.merge(username, until, Math::max);
+        // Entries only matter while tokens issued before them can still be alive
+        revoked.values().removeIf(time -> time < now);
+    }
+
+    // username -> revoked until, for the snapshot and for peers that reconnect
+    public static Map<String, Long> revocations() {
+        long now = Instant.now().getEpochSecond();
+        Map<String, Long> current = new LinkedHashMap<>();
+        revoked.forEach((username, until) -> {
+            if (until >= now) {
+                current.put(username, until);
+            }
+        });
+        return current;
+    }
+
+    private static String sign(String username, long expirationTime) {
+        String payload = B64.encodeToString(username.getBytes(StandardCharsets.UTF_8)) + "." + expirationTime + "." + Keys.signingKeyId;
+        return payload + "." + B64.encodeToString(mac(Keys.keys.get(Keys.signingKeyId), payload));
+    }
+
+    private static byte[] mac(Mac prototype, String payload) {
+        try {
+            Mac mac = (Mac) prototype.clone();
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Loaded on first use only, so clients never touch the key file
+    private static class Keys {
+        // key id -> prototype Mac, cloned per use because Mac instances are not thread safe
+        private static final Map<String, Mac> keys = new LinkedHashMap<>();
+        private static String signingKeyId;
+
+        static {
+            loadKeys();
+        }
+
+        // Keys come from -Dchat.token.keys=id:base64secret,... (first one signs) or db/token_keys.csv.
+        // Every node of a cluster must use the same keys.
+        private static void loadKeys() {
+            String configured = System.getProperty("chat.token.keys");
+            try {
+                if (configured != null && !configured.isBlank()) {
+                    for (String entry : configured.split(",")) {
+                        String[] parts = entry.trim().split(":", 2);
+                        addKey(parts[0], Base64.getDecoder().decode(parts[1]));
+                    }
+                    return;
+                }
+                File keysFile = new File(KEYS_FILE);
+                if (keysFile.exists()) {
+                    try (BufferedReader br = new BufferedReader(new FileReader(keysFile))) {
+                        String line;
+                        while ((line = br.readLine()) != null) {
+                            if (line.startsWith("kid,secret")) {
+                                continue;
+                            }
+                            String[] parts = line.split(",");
+                            if (parts.length == 2) {
+                                addKey(parts[0], Base64.getDecoder().decode(parts[1]));
+                            }
+                        }
+                    }
+                }
+                if (keys.isEmpty()) {
+                    // First start: create a signing key and keep it so tokens survive restarts
+                    byte[] secret = new byte[32];
+                    new SecureRandom().nextBytes(secret);
+                    String keyId = "k1";
+                    addKey(keyId, secret);
+                    keysFile.getParentFile().mkdirs();
+                    try (BufferedWriter writer = new BufferedWriter(new FileWriter(keysFile))) {
+                        writer.write("kid,secret\n");
+                        writer.write(keyId + "," + Base64.getEncoder().encodeToString(secret) + "\n");
+                    }
+                }
+            } catch (IOException | GeneralSecurityException e) {
+                throw new IllegalStateException("Could not load token signing keys", e);
+            }
+        }
+
+        private static void addKey(String keyId, byte[] secret) throws GeneralSecurityException {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            keys.put(keyId, mac);
+            if (signingKeyId == null) {
+                signingKeyId = keyId;
+            }
+        }
     }
 
     public boolean isExpired() {
-        return Instant.now().getEpochSecond() > expirationTime;
+        return Instant.now().getEpochSecond() > signed.expirationTime();
     }
-    
+
     public String getUsername() {
         return username;
     }
-    
+
     public String getTokenString() {
-        return token;
+        return signed.token();
+    }
+
+    public long getExpirationTime() {
+        return signed.expirationTime();
+    }
+
+    // Token string and expiration from the same refresh, for callers that need both
+    public Signed getSigned() {
+        return signed;
+    }
+
+    TimerWheel.Timeout getExpiryTimeout() {
+        return expiryTimeout;
     }
-    
-    public Long getExpirationTime() {
-        return expirationTime;
+
+    void setExpiryTimeout(TimerWheel.Timeout expiryTimeout) {
+        this.expiryTimeout = expiryTimeout;
     }
 
     public String toString() {
+        Signed current = signed;
         return "Token:" +
                 "username='" + username + '\'' +
-                ", token='" + token + '\'' +
-                ", expirationTime=" + expirationTime;
+                ", token='" + current.token() + '\'' +
+                ", expirationTime=" + current.expirationTime();
     }
-}
\ No newline at end of file
+}
@@ -1,81 +1,147 @@
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
 import java.io.*;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class UserManager {
     public static List<User> users = new ArrayList<>();
-    private static Map<String, Boolean> mutedUsers = new HashMap<>();
-    private static Map<String, String> userRoles = new HashMap<>();
+    // Indexed by Symbols.USERS id, null where the id belongs to no registered user
+    private static final List<User> usersById = new ArrayList<>();
+    // One bit per user id
+    private static final BitSet mutedUsers = new BitSet();
+    private static final BitSet admins = new BitSet();
     
     private static final ReentrantLock usersLock = new ReentrantLock();
     private static final ReentrantLock mutedUsersLock = new ReentrantLock();
     private static final ReentrantLock userRolesLock = new ReentrantLock();
 
-    public static void addUser(String username, String password, String role) {
-        User user = new User(username, password, role);
+    // Adds the user, or replaces the password hash and role of the one with the same name;
+    // users.csv may hold several rows for a user and the last one wins
+    public static void addUser(String username, String passwordHash, String role) {
+        int id = Symbols.USERS.id(username);
         usersLock.lock();
         try {
-            users.add(user);
-            userRoles.put(username, role);
+            User existing = id < usersById.size() ? usersById.get(id) : null;
+            if (existing != null) {
+                existing.setPasswordHash(passwordHash);
+                existing.setRole(role);
+            } else {
+                put(id, new User(username, passwordHash, role));
+            }
+        } finally {
+            usersLock.unlock();
+        }
+        userRolesLock.lock();
+        try {
+            admins.set(id, role.equals("admin"));
+        } finally {
+            userRolesLock.unlock();
+        }
+    }
+
+    // Registration: adds the user only if the name is free, in one step
+    public static boolean addUserIfAbsent(String username, String passwordHash, String role) {
+        int id = Symbols.USERS.id(username);
+        usersLock.lock();
+        try {
+            if (id < usersById.size() && usersById.get(id) != null) {
+                return false;
+            }
+            put(id, new User(username, passwordHash, role));
+        } finally {
+            usersLock.unlock();
+        }
+        userRolesLock.lock();
+        try {
+            admins.set(id, role.equals("admin"));
+        } finally {
+            userRolesLock.unlock();
+        }
+        return true;
+    }
+
+    // Undoes a registration that could not be saved
+    public static void removeUser(String username) {
+        int id = Symbols.USERS.lookup(username);
+        if (id < 0) {
+            return;
+        }
+        usersLock.lock();
+        try {
+            if (id < usersById.size()) {
+                users.remove(usersById.get(id));
+                usersById.set(id, null);
+            }
         } finally {
             usersLock.unlock();
         }
     }
 
+    // Must be called with usersLock held
+    private static void put(int id, User user) {
+        users.add(user);
+        while (usersById.size() <= id) {
+            usersById.add(null);
+        }
+        usersById.set(id, user);
+    }
+
     public static boolean isUserMuted(String username) {
+        int id = Symbols.USERS.lookup(username);
+        if (id < 0) {
+            return false;
+        }
         mutedUsersLock.lock();
         try {
-            return mutedUsers.getOrDefault(username, false);
+            return mutedUsers.get(id);
         } finally {
             mutedUsersLock.unlock();
         }
     }
 
     public static void muteUser(String username) {
+        int id = Symbols.USERS.id(username);
         mutedUsersLock.lock();
         try {
-            mutedUsers.put(username, true);
+            mutedUsers.set(id);
         } finally {
             mutedUsersLock.unlock();
         }
     }
 
     public static void unmuteUser(String username) {
+        int id = Symbols.USERS.id(username);
         mutedUsersLock.lock();
         try {
-            mutedUsers.put(username, false);
+            mutedUsers.clear(id);
         } finally {
             mutedUsersLock.unlock();
         }
     }
 
     public static boolean isAdmin(String username) {
+        int id = Symbols.USERS.lookup(username);
+        if (id < 0) {
+            return false;
+        }
         userRolesLock.lock();
         try {
-            return "admin".equals(userRoles.getOrDefault(username, "user"));
+            return admins.get(id);
         } finally {
             userRolesLock.unlock();
         }
     }
 
     public static void promoteToAdmin(String username) {
+        int id = Symbols.USERS.id(username);
         userRolesLock.lock();
         try {
-            userRoles.put(username, "admin");
+            admins.set(id);
             
-            usersLock.lock();
-            try {
-                for (User user : users) {
-                    if (user.getUsername().equals(username)) {
-                        user.setRole("admin");
-                        break;
-                    }
-                }
-            } finally {
-                usersLock.unlock();
+            User user = getUserByUsername(username);
+            if (user != null) {
+                user.setRole("admin");
             }
         } finally {
             userRolesLock.unlock();
@@ -83,36 +149,39 @@ public class UserManager {
     }
 
     public static void demoteToUser(String username) {
+        int id = Symbols.USERS.id(username);
         userRolesLock.lock();
         try {
-            userRoles.put(username, "user");
+            admins.clear(id);
             
             // Atualiza também no objeto User, se existir
-            usersLock.lock();
-            try {
-                for (User user : users) {
-                    if (user.getUsername().equals(username)) {
-                        user.setRole("user");
-                        break;
-                    }
-                }
-            } finally {
-                usersLock.unlock();
+            User user = getUserByUsername(username);
+            if (user != null) {
+                user.setRole("user");
             }
         } finally {
             userRolesLock.unlock();
         }
     }
 
-    public static User getUserByUsername(String username) {
+    // Copy of all registered users
+    public static List<User> getUsers() {
         usersLock.lock();
         try {
-            for (User user : users) {
-                if (user.getUsername().equals(username)) {
-                    return user;
-                }
-            }
+            return new ArrayList<>(users);
+        } finally {
+            usersLock.unlock();
+        }
+    }
+
+    public static User getUserByUsername(String username) {
+        int id = Symbols.USERS.lookup(username);
+        if (id < 0) {
             return null;
+        }
+        usersLock.lock();
+        try {
+            return id < usersById.size() ? usersById.get(id) : null;
         } finally {
             usersLock.unlock();
         }
@@ -122,10 +191,8 @@ public class UserManager {
         List<String> mutedList = new ArrayList<>();
         mutedUsersLock.lock();
         try {
-            for (Map.Entry<String, Boolean> entry : mutedUsers.entrySet()) {
-                if (entry.getValue()) {
-                    mutedList.add(entry.getKey());
-                }
+            for (int id = mutedUsers.nextSetBit(0); id >= 0; id = mutedUsers.nextSetBit(id + 1)) {
+                mutedList.add(Symbols.USERS.name(id));
             }
         } finally {
             mutedUsersLock.unlock();
@@ -144,10 +211,10 @@ public class UserManager {
                 String[] parts = line.split(",");
                 if (parts.length == 3) {
                     String username = parts[0].trim();
-                    String password = parts[1].trim();
+                    String passwordHash = parts[1].trim();
                     String role = parts[2].trim();
                     if (role.equals("admin") || role.equals("user")) {
-                        addUser(username, password, role);
+                        addUser(username, passwordHash, role);
                     } else {
                         System.out.println("Invalid role for user: " + username);
                     }
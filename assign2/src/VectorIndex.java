@@ -0,0 +1,148 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+// Embeddings of an AI room's past turns, used to pull the few most relevant old lines into the
+// prompt instead of the whole history. Texts are embedded with the hashing trick (words and word
+// pairs hashed into a fixed number of signed dimensions, then normalized), which needs no model
+// and is good enough to match lines that share vocabulary.
+//
+// All vectors live in one float array, row after row, and a search is a brute-force dot product
+// over it. At the size of a room's history that is cheap next to the model call, and the plain
+// loop over contiguous floats is compiled to SIMD instructions by the JIT.
+//
+// A row takes about 2 KB, so only the newest chat.ai.maxIndexedLines lines are kept; once the
+// array is full it is used as a ring and each new line overwrites the oldest one.
+public class VectorIndex {
+    public static final int DIMENSIONS = Integer.getInteger("chat.ai.dimensions", 512);
+    public static final int MAX_ROWS = Integer.getInteger("chat.ai.maxIndexedLines", 4096);
+    // Hits scoring below this share almost no words with the query
+    private static final float MIN_SCORE = 0.25f;
+    // Words too common to say anything about what a line is about
+    private static final Set<String> STOP_WORDS = Set.of("the", "is", "are", "was", "and", "or", "to", "of", "in",
+        "on", "it", "that", "this", "what", "a", "an", "be", "do", "you", "me", "my", "at", "for", "with", "about");
+
+    private float[] vectors = new float[Math.min(64, MAX_ROWS) * DIMENSIONS];
+    private String[] texts = new String[Math.min(64, MAX_ROWS)];
+    private int size = 0;
+    // Slot of the oldest row, only moves once the index is full
+    private int oldest = 0;
+
+    public synchronized void add(String text) {
+        int slot;
+        if (size < MAX_ROWS) {
+            if (size == texts.length) {
+                int capacity = Math.min(texts.length * 2, MAX_ROWS);
+                vectors = Arrays.copyOf(vectors, capacity * DIMENSIONS);
+                texts = Arrays.copyOf(texts, capacity);
+            }
+            slot = size++;
+        } else {
+            slot = oldest;
+            oldest = (oldest + 1) % MAX_ROWS;
+            Arrays.fill(vectors, slot * DIMENSIONS, (slot + 1) * DIMENSIONS, 0f);
+        }
+        embed(text, vectors, slot * DIMENSIONS);
+        texts[slot] = text;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // The k stored texts most similar to the query, in the order they were added, leaving out the
+    // newest skipLast entries (the caller already has those)
+    public synchronized List<String> search(String query, int k, int skipLast) {
+        if (k <= 0) {
+            return List.of();
+        }
+        float[] q = new float[DIMENSIONS];
+        embed(query, q, 0);
+        int searchable = size - skipLast;
+
+        int[] best = new int[k];
+        float[] bestScores = new float[k];
+        int found = 0;
+        for (int row = 0; row < searchable; row++) {
+            float score = dot(q, vectors, slot(row) * DIMENSIONS);
+            if (score < MIN_SCORE || (found == k && score <= bestScores[k - 1])) {
+                continue;
+            }
+            // Insertion into the small sorted top-k arrays
+            int position = found < k ? found++ : k - 1;
+            while (position > 0 && bestScores[position - 1] < score) {
+                bestScores[position] = bestScores[position - 1];
+                best[position] = best[position - 1];
+                position--;
+            }
+            bestScores[position] = score;
+            best[position] = row;
+        }
+
+        // Returned in conversation order so the model reads them as they happened
+        int[] rows = Arrays.copyOf(best, found);
+        Arrays.sort(rows);
+        List<String> hits = new ArrayList<>(found);
+        for (int row : rows) {
+            hits.add(texts[slot(row)]);
+        }
+        return hits;
+    }
+
+    // Rows are numbered oldest first
+    private int slot(int row) {
+        return size < MAX_ROWS ? row : (oldest + row) % MAX_ROWS;
+    }
+
+    private static float dot(float[] q, float[] vectors, int offset) {
+        float sum = 0;
+        for (int i = 0; i < DIMENSIONS; i++) {
+            sum += q[i] * vectors[offset + i];
+        }
+        return sum;
+    }
+
+    private static void embed(String text, float[] target, int offset) {
+        String[] words = text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+");
+        String previous = null;
+        for (String word : words) {
+            if (word.length() < 2 || STOP_WORDS.contains(word)) {
+                continue;
+            }
+            addFeature(word, 1.0f, target, offset);
+            if (previous != null) {
+                addFeature(previous + " " + word, 0.5f, target, offset);
+            }
+            previous = word;
+        }
+        float norm = 0;
+        for (int i = 0; i < DIMENSIONS; i++) {
+            norm += target[offset + i] * target[offset + i];
+        }
+        if (norm > 0) {
+            float scale = (float) (1 / Math.sqrt(norm));
+            for (int i = 0; i < DIMENSIONS; i++) {
+                target[offset + i] *= scale;
+            }
+        }
+    }
+
+    private static void addFeature(String feature, float weight, float[] target, int offset) {
+        int hash = murmurMix(Arrays.hashCode(feature.getBytes(StandardCharsets.UTF_8)));
+        int index = Math.floorMod(hash, DIMENSIONS);
+        // The sign bit keeps colliding features from always adding up
+        target[offset + index] += (hash & 0x40000000) == 0 ? weight : -weight;
+    }
+
+    private static int murmurMix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}